@@ -0,0 +1,56 @@
+package deepLearning.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActivationBenchmark {
+	
+	@Param({"SIGMOID", "RELU", "TANH", "SOFTPLUS", "BSTEP", "SOFTMAX", "LINEAR"})
+	public Sequential.ACTIVATION activation;
+	
+	@Param({"128", "4096"})
+	public int length;
+	
+	private ActivationFunction function;
+	private Vector raw;
+	private float[] value, derivative;
+	
+	@Setup
+	public void setup() {
+		
+		function = new ActivationFunction(activation);
+		raw = Samples.random(1, length, 1)[0];
+		value = new float[length];
+		derivative = new float[length];
+	}
+	
+	@Benchmark
+	public Vector computeVector() {
+		
+		return function.compute(raw).getValue();
+	}
+	
+	@Benchmark
+	public float[] computeBuffers() {
+		
+		function.compute(raw.get(), value, derivative, 0, length);
+		return value;
+	}
+	
+	@Benchmark
+	public float[] computeValueOnly() {
+		
+		function.compute(raw.get(), value, null, 0, length);
+		return value;
+	}
+}
@@ -0,0 +1,67 @@
+package deepLearning.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+//Backward pass cost per sample, the pooled conv variants cover Optimizer.unPool
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackpropBenchmark {
+	
+	@Param({"dense", "conv"})
+	public String topology;
+	
+	@Param({"256"})
+	public int hidden;
+	
+	@Param({"8", "32"})
+	public int filterCount;
+	
+	@Param({"MAX", "AVG", "NONE"})
+	public Conv2D.POOLING pool;
+	
+	@Param({"2"})
+	public int poolStride;
+	
+	@Param({"MSE", "CROSSENTROPY"})
+	public Optimizer.LOSS loss;
+	
+	private Sequential model;
+	private Vector sample, label;
+	
+	@Setup
+	public void setup() {
+		
+		model = new Sequential();
+		if (topology.equals("conv")) {
+			model.add(new Conv2D(new int[] {28, 28, 1}, filterCount, new int[] {3, 3}, Sequential.ACTIVATION.RELU));
+			if (pool != Conv2D.POOLING.NONE)
+				model.pool(pool, poolStride);
+			model.add(new Dense(10, Sequential.ACTIVATION.SOFTMAX));
+		} else {
+			model.add(new Dense(784, hidden, Sequential.ACTIVATION.RELU));
+			model.add(new Dense(10, Sequential.ACTIVATION.SOFTMAX));
+		}
+		model.optimizer(loss);
+		
+		sample = Samples.random(1, 784, 1)[0];
+		label = Samples.oneHot(1, 10, 1)[0];
+	}
+	
+	@Benchmark
+	public float backpropagate() {
+		
+		Vector guess = model.feedForward(sample);
+		float cost = model.getOpt().computeLoss(guess, label);
+		model.getOpt().backpropagate(sample, model.getOpt().computeLossDeriv(guess, label));
+		return cost;
+	}
+}
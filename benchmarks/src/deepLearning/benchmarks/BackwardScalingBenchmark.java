@@ -0,0 +1,52 @@
+package deepLearning.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+//Regression guard for the conv backward pass: the forward state is built once in setup and only
+//Optimizer.backpropagate is measured. The second layer has a fixed width, so time per op should grow linearly with
+//filterCount (and channels): a quadratic curve means per-filter work is being redone per filter again
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackwardScalingBenchmark {
+	
+	@Param({"4", "8", "16", "32", "64"})
+	public int filterCount;
+	
+	@Param({"1", "3"})
+	public int channels;
+	
+	private Sequential model;
+	private Vector sample, lossDeriv;
+	
+	@Setup
+	public void setup() {
+		
+		model = new Sequential();
+		model.add(new Conv2D(new int[] {28, 28, channels}, filterCount, new int[] {3, 3}, Sequential.ACTIVATION.RELU));
+		model.add(new Conv2D(8, new int[] {3, 3}, Sequential.ACTIVATION.RELU));
+		model.add(new Dense(10, Sequential.ACTIVATION.SOFTMAX));
+		model.optimizer(Optimizer.LOSS.CROSSENTROPY);
+		
+		sample = Samples.random(1, 28 * 28 * channels, 1)[0];
+		Vector label = Samples.oneHot(1, 10, 1)[0];
+		
+		Vector guess = model.feedForward(sample);
+		lossDeriv = model.getOpt().computeLossDeriv(guess, label);
+	}
+	
+	@Benchmark
+	public Optimizer backpropagate() {
+		
+		model.getOpt().backpropagate(sample, lossDeriv);
+		return model.getOpt();
+	}
+}
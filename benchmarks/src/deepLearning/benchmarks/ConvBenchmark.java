@@ -0,0 +1,75 @@
+package deepLearning.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvBenchmark {
+	
+	@Param({"28"})
+	public int inputSize;
+	
+	@Param({"1", "8"})
+	public int channels;
+	
+	@Param({"8", "32"})
+	public int filterCount;
+	
+	@Param({"3", "5"})
+	public int filterSize;
+	
+	@Param({"MAX", "AVG", "NONE"})
+	public Conv2D.POOLING pool;
+	
+	@Param({"2", "4"})
+	public int poolStride;
+	
+	@Param({"RELU"})
+	public Sequential.ACTIVATION activation;
+	
+	private Conv2D conv;
+	private Filter filter;
+	private Matrix[] volume;
+	private float[] planar;
+	
+	@Setup
+	public void setup() {
+		
+		conv = new Conv2D(filterCount, new int[] {filterSize, filterSize}, activation);
+		conv.setPool(pool, pool == Conv2D.POOLING.NONE ? 1 : poolStride);
+		conv.setPad(Conv2D.PADDING.ORIGINAL);
+		conv.init(new int[] {inputSize, inputSize, channels});
+		
+		Vector sample = Samples.random(1, conv.getInputSize(), 1)[0];
+		volume = conv.toInputVolume(sample, "horizontal");
+		planar = conv.toPlanar(sample, "horizontal").clone();
+		filter = conv.copyFilters()[0];
+	}
+	
+	@Benchmark
+	public Matrix[] computeOutput() {
+		
+		return conv.computeOutput(volume);
+	}
+	
+	@Benchmark
+	public float[] computeOutputPlanar() {
+		
+		return conv.computeOutput(planar);
+	}
+	
+	@Benchmark
+	public Matrix convolve() {
+		
+		return filter.convolve(volume);
+	}
+}
@@ -0,0 +1,58 @@
+package deepLearning.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DenseBenchmark {
+	
+	@Param({"64", "256", "1024"})
+	public int inputs;
+	
+	@Param({"64", "256", "1024"})
+	public int neurons;
+	
+	@Param({"1", "32"})
+	public int batchSize;
+	
+	@Param({"SIGMOID", "RELU", "SOFTMAX"})
+	public Sequential.ACTIVATION activation;
+	
+	@Param({"FP32", "BF16", "FP16"})
+	public Sequential.PRECISION precision;
+	
+	private Dense dense;
+	private Vector sample;
+	private float[] batch;
+	
+	@Setup
+	public void setup() {
+		
+		dense = new Dense(inputs, neurons, activation).setPrecision(precision);
+		
+		Vector[] samples = Samples.random(batchSize, inputs, 1);
+		sample = samples[0];
+		batch = Samples.flat(samples);
+	}
+	
+	@Benchmark
+	public Vector computeOutput() {
+		
+		return dense.computeOutput(sample);
+	}
+	
+	@Benchmark
+	public float[] computeOutputBatch() {
+		
+		return dense.computeOutput(batch, batchSize);
+	}
+}
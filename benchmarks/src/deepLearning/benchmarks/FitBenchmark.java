@@ -0,0 +1,79 @@
+package deepLearning.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+//One full epoch per invocation, throughput is epochs per second. Comparing async across the threads values gives the
+//Hogwild scaling against the synchronous replicas
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FitBenchmark {
+	
+	@Param({"dense", "conv", "sparse"})
+	public String topology;
+	
+	@Param({"1", "32"})
+	public int batchSize;
+	
+	@Param({"1", "2", "4", "8"})
+	public int threads;
+	
+	@Param({"false", "true"})
+	public boolean async;
+	
+	@Param({"MSE", "CROSSENTROPY"})
+	public Optimizer.LOSS loss;
+	
+	@Param({"1024"})
+	public int samples;
+	
+	private Sequential model;
+	private Vector[] trainSet, labelSet;
+	private Sequential.Options options;
+	
+	@Setup
+	public void setup() {
+		
+		model = new Sequential();
+		if (topology.equals("conv")) {
+			model.add(new Conv2D(new int[] {28, 28, 1}, 8, new int[] {3, 3}, Sequential.ACTIVATION.RELU)).pool(Conv2D.POOLING.MAX, 2);
+			model.add(new Dense(10, Sequential.ACTIVATION.SOFTMAX));
+		} else if (topology.equals("sparse")) {
+			model.add(new Dense(8192, 16, Sequential.ACTIVATION.RELU));
+			model.add(new Dense(10, Sequential.ACTIVATION.SOFTMAX));
+		} else {
+			model.add(new Dense(784, 128, Sequential.ACTIVATION.RELU));
+			model.add(new Dense(10, Sequential.ACTIVATION.SOFTMAX));
+		}
+		model.optimizer(loss);
+		
+		trainSet = topology.equals("sparse") ? Samples.sparse(samples, 8192, 32, 1) : Samples.random(samples, 784, 1);
+		labelSet = Samples.oneHot(samples, 10, 2);
+		
+		options = model.new Options(model) {
+			@Override
+			public void tweak() {
+				lr = 0.001f;
+				epochs = 1;
+				batchSize = FitBenchmark.this.batchSize;
+				threads = FitBenchmark.this.threads;
+				async = FitBenchmark.this.async;
+				saveEpochLog = false;
+			}
+		};
+	}
+	
+	@Benchmark
+	public Sequential epoch() {
+		
+		return model.fit(trainSet, labelSet, options);
+	}
+}
@@ -0,0 +1,62 @@
+package deepLearning.benchmarks;
+
+import java.util.Random;
+
+import tensors.Float.*;
+
+final class Samples {
+	
+	private Samples() {}
+	
+	static Vector[] random(int count, int length, long seed) {
+		
+		Random random = new Random(seed);
+		Vector[] samples = new Vector[count];
+		
+		for (int i = 0; i < count; i++) {
+			float[] values = new float[length];
+			for (int j = 0; j < length; j++)
+				values[j] = random.nextFloat() * 2.0f - 1.0f;
+			samples[i] = new Vector(values);
+		}
+		return samples;
+	}
+	
+	//Wide tabular rows with only active features set to 1, the shape Hogwild is meant for
+	static Vector[] sparse(int count, int length, int active, long seed) {
+		
+		Random random = new Random(seed);
+		Vector[] samples = new Vector[count];
+		
+		for (int i = 0; i < count; i++) {
+			float[] values = new float[length];
+			for (int j = 0; j < active; j++)
+				values[random.nextInt(length)] = 1.0f;
+			samples[i] = new Vector(values);
+		}
+		return samples;
+	}
+	
+	static Vector[] oneHot(int count, int classes, long seed) {
+		
+		Random random = new Random(seed);
+		Vector[] labels = new Vector[count];
+		
+		for (int i = 0; i < count; i++) {
+			float[] values = new float[classes];
+			values[random.nextInt(classes)] = 1.0f;
+			labels[i] = new Vector(values);
+		}
+		return labels;
+	}
+	
+	static float[] flat(Vector[] samples) {
+		
+		int length = samples[0].getLength();
+		float[] flat = new float[samples.length * length];
+		
+		for (int i = 0; i < samples.length; i++)
+			System.arraycopy(samples[i].get(), 0, flat, i * length, length);
+		return flat;
+	}
+}
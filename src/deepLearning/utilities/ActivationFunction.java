@@ -13,6 +13,10 @@ public class ActivationFunction implements Serializable {
 	private Vector value;
 	private Vector derivative;
 	
+	//Set by the optimizer for a softmax output trained with cross entropy, so the layer asks for the log probabilities
+	//too, taken from the same log-sum-exp as the softmax. The derivative is p(1 - p) either way
+	private boolean logSoftmax;
+	
 	public ActivationFunction(Sequential.ACTIVATION actLabel_) {
 		
 		actLabel = actLabel_; 
@@ -20,64 +24,177 @@ public class ActivationFunction implements Serializable {
 	
 	public ActivationFunction compute(Vector raw) {
 		
-		value = raw.copy();
-		derivative = raw.copy();
+		int length = raw.getLength();
+		if (value == null || value.getLength() != length) {
+			value = new Vector(length);
+			derivative = new Vector(length);
+		}
+		
+		compute(raw.get(), value.get(), derivative.get(), 0, length);
+		return this;
+	}
+	
+	public void compute(float[] raw, float[] value, float[] derivative, int offset, int length) {
+		
+		compute(raw, null, value, derivative, offset, length);
+	}
+	
+	//Adds bias (indexed from 0) to raw first. Any of raw, value and derivative may alias, so it can run in place.
+	//The bias pass and the branch free loops below are left for HotSpot to vectorize. A null derivative is inference,
+	//only the value is computed
+	public void compute(float[] raw, float[] bias, float[] value, float[] derivative, int offset, int length) {
 		
-		if (actLabel == Sequential.ACTIVATION.SIGMOID)
-			for (int i = 0; i < raw.getLength(); i++) {
+		compute(raw, bias, value, derivative, null, offset, length);
+	}
+	
+	//A softmax with a logValue buffer also writes log p there, which must not alias the others. Other activations ignore it
+	public void compute(float[] raw, float[] bias, float[] value, float[] derivative, float[] logValue, int offset, int length) {
+		
+		int end = offset + length;
+		
+		if (bias != null) {
+			for (int i = 0; i < length; i++)
+				value[offset + i] = raw[offset + i] + bias[i];
+			raw = value;
+		}
+		
+		if (derivative == null) {
+			computeValue(raw, value, offset, end);
+			return;
+		}
+		
+		switch (actLabel) {
+		case SIGMOID:
+			for (int i = offset; i < end; i++) {
 				
-				value.set(i, 1.0f / (1.0f + (float) Math.exp( - raw.get(i))));
-				derivative.set(i, value.get(i) * (1.0f - value.get(i)));
+				float x = raw[i];
+				float y = 1.0f / (1.0f + (float) Math.exp( - x));
+				value[i] = y;
+				derivative[i] = y * (1.0f - y);
 			}
-		else if (actLabel == Sequential.ACTIVATION.RELU)
-			for (int i = 0; i < raw.getLength(); i++) {
+			break;
+		case RELU:
+			for (int i = offset; i < end; i++) {
 				
-				value.set(i, Math.max(0.0f, raw.get(i)));
-				if (raw.get(i) > 0)
-					derivative.set(i, 1.0f);
-				else
-					derivative.set(i, 0.0f);
+				float x = raw[i];
+				derivative[i] = x > 0 ? 1.0f : 0.0f;
+				value[i] = Math.max(0.0f, x);
 			}
-		else if (actLabel == Sequential.ACTIVATION.TANH)
-			for (int i = 0; i < raw.getLength(); i++) {
+			break;
+		case TANH:
+			for (int i = offset; i < end; i++) {
 				
-				value.set(i, (float) Math.tanh(raw.get(i)));
-				derivative.set(i, 1.0f - value.get(i) * value.get(i));
+				float x = raw[i];
+				float y = (float) Math.tanh(x);
+				value[i] = y;
+				derivative[i] = 1.0f - y * y;
 			}
-		else if (actLabel == Sequential.ACTIVATION.SOFTPLUS)
-			for (int i = 0; i < raw.getLength(); i++) {
+			break;
+		case SOFTPLUS:
+			for (int i = offset; i < end; i++) {
 				
-				value.set(i, (float) Math.log(1.0f + Math.exp(raw.get(i))));
-				derivative.set(i, 1.0f / (1.0f + (float) Math.exp( - raw.get(i))));
+				float x = raw[i];
+				value[i] = (float) Math.log(1.0f + Math.exp(x));
+				derivative[i] = 1.0f / (1.0f + (float) Math.exp( - x));
 			}
-		else if (actLabel == Sequential.ACTIVATION.BSTEP)
-			for (int i = 0; i < raw.getLength(); i++) {
+			break;
+		case BSTEP:
+			for (int i = offset; i < end; i++) {
 				
-				if (raw.get(i) > 0)
-					value.set(i, 1.0f);
-				else
-					value.set(i, 0.0f);
+				float x = raw[i];
+				value[i] = x > 0 ? 1.0f : 0.0f;
+				derivative[i] = 0.0f;
+			}
+			break;
+		case SOFTMAX:
+			float max = Float.NEGATIVE_INFINITY;
+			for (int i = offset; i < end; i++) {
 				
-				derivative.set(i, 0.0f);
+				float x = raw[i];
+				value[i] = x;
+				max = Math.max(max, x);
 			}
-		else if (actLabel == Sequential.ACTIVATION.SOFTMAX) {
 			
 			float expSum = 0;
-			Vector subRaw = Vector.sub(raw, raw.max());
-			for (int i = 0; i < raw.getLength(); i++)
-				expSum += Math.exp(subRaw.get(i));
+			for (int i = offset; i < end; i++) {
+				float shifted = value[i] - max;
+				if (logValue != null)
+					logValue[i] = shifted;
+				
+				value[i] = (float) Math.exp(shifted);
+				expSum += value[i];
+			}
+			
+			float inverse = 1.0f / expSum;
+			for (int i = offset; i < end; i++) {
+				
+				value[i] *= inverse;
+				derivative[i] = value[i] * (1.0f - value[i]);
+			}
 			
-			for (int i = 0; i < subRaw.getLength(); i++) {
+			if (logValue != null) {
+				float logSum = (float) Math.log(expSum);
+				for (int i = offset; i < end; i++)
+					logValue[i] -= logSum;
+			}
+			break;
+		case LINEAR:
+			for (int i = offset; i < end; i++) {
 				
-				value.set(i, (float) Math.exp(subRaw.get(i)) / expSum);
-				derivative.set(i, value.get(i) * (1.0f - value.get(i)));
+				value[i] = raw[i];
+				derivative[i] = 1.0f;
 			}
-		} else if (actLabel == Sequential.ACTIVATION.LINEAR)
-			derivative.setAll(1);
+			break;
+		}
+	}
+	
+	private void computeValue(float[] raw, float[] value, int offset, int end) {
 		
-		return this;
+		switch (actLabel) {
+		case SIGMOID:
+			for (int i = offset; i < end; i++)
+				value[i] = 1.0f / (1.0f + (float) Math.exp( - raw[i]));
+			break;
+		case RELU:
+			for (int i = offset; i < end; i++)
+				value[i] = Math.max(0.0f, raw[i]);
+			break;
+		case TANH:
+			for (int i = offset; i < end; i++)
+				value[i] = (float) Math.tanh(raw[i]);
+			break;
+		case SOFTPLUS:
+			for (int i = offset; i < end; i++)
+				value[i] = (float) Math.log(1.0f + Math.exp(raw[i]));
+			break;
+		case BSTEP:
+			for (int i = offset; i < end; i++)
+				value[i] = raw[i] > 0 ? 1.0f : 0.0f;
+			break;
+		case SOFTMAX:
+			float max = Float.NEGATIVE_INFINITY;
+			for (int i = offset; i < end; i++)
+				max = Math.max(max, raw[i]);
+			
+			float expSum = 0;
+			for (int i = offset; i < end; i++) {
+				value[i] = (float) Math.exp(raw[i] - max);
+				expSum += value[i];
+			}
+			
+			float inverse = 1.0f / expSum;
+			for (int i = offset; i < end; i++)
+				value[i] *= inverse;
+			break;
+		case LINEAR:
+			if (raw != value)
+				System.arraycopy(raw, offset, value, offset, end - offset);
+			break;
+		}
 	}
-
+	
+	public ActivationFunction setLogSoftmax(boolean logSoftmax) {this.logSoftmax = logSoftmax; return this;}
+	public boolean isLogSoftmax() {return logSoftmax && actLabel == Sequential.ACTIVATION.SOFTMAX;}
 	public Vector getValue() {return value;}
 	public Vector getDerivative() {return derivative;}
 	public Matrix getValueReshaped(int rows, int cols) {return new Matrix(value.get(), rows, cols);}
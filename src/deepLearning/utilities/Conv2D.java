@@ -1,6 +1,9 @@
 package deepLearning.utilities;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 
 import tensors.Float.*;
 
@@ -11,7 +14,8 @@ public class Conv2D implements Serializable {
 	public enum POOLING {
 		MAX,
 		AVG,
-		NONE;
+		NONE,
+		GLOBAL_AVG;
 	}
 	
 	public enum PADDING {
@@ -25,14 +29,24 @@ public class Conv2D implements Serializable {
 	private Sequential.ACTIVATION actLabel;
 	private ActivationFunction activation;
 	
+	//Only read back from models serialized before the filters were packed, see readObject
 	private Filter[] filters;
 	
-	private int filterCount, poolStride;
+	//Packed (filter x channel x row x col), the activations below are planar (filter x row x col) maps
+	private float[] weights;
+	
+	//Half precision copy of weights, widened into a scratch once per forward pass. Null in FP32
+	private Sequential.PRECISION precision;
+	private short[] stored;
+	
+	private int filterCount, poolStride, poolWindow;
 	private int[] filterShape, inputShape, outputShape, pooledOutShape, padLayers;
 	
-	private Matrix[] outVal, outDer, pooledOutVal;
 	private Vector flatOutput;
 	
+	private transient float[] volume, columns, raw, derivative, pooled, columnError, volumeError, widened;
+	private transient int[] poolIndex;
+	
 	private boolean ready;
 	
 	public Conv2D(int filterCount, int[] filterShapeRed, Sequential.ACTIVATION actLabel) {
@@ -51,14 +65,11 @@ public class Conv2D implements Serializable {
 		activation = new ActivationFunction(actLabel);
 		
 		poolStride = 1;
+		poolWindow = 1;
 		
 		pool = POOLING.NONE;
 		pad = PADDING.VALID;
 		
-		outVal = new Matrix[filterCount];
-		outDer = new Matrix[filterCount];
-		pooledOutVal = new Matrix[filterCount];
-		
 		ready = false;
 	}
 	
@@ -77,13 +88,11 @@ public class Conv2D implements Serializable {
 		activation = new ActivationFunction(actLabel);
 		
 		poolStride = copied.getPoolStride();
+		poolWindow = copied.getPoolWindow();
 		
 		pool = copied.getPool();
 		pad = copied.getPad();
-		
-		outVal = new Matrix[filterCount];
-		outDer = new Matrix[filterCount];
-		pooledOutVal = new Matrix[filterCount];
+		precision = copied.precision;
 		
 		ready = copied.isReady();
 		
@@ -95,12 +104,33 @@ public class Conv2D implements Serializable {
 			pooledOutShape = copied.getPooledOutShape();
 			padLayers = copied.getPadLayers();
 			
-			filters = new Filter[filterCount];
-			for (int i = 0; i < filterCount; i++)
-				filters[i] = copied.getFilters()[i].copy();
+			weights = copied.getRawFilters().clone();
+			stored = copied.stored != null ? copied.stored.clone() : null;
 		}
 	}
 	
+	Conv2D replica() {
+		
+		Conv2D replica = new Conv2D(filterCount, new int[] {filterShape[0], filterShape[1]}, actLabel);
+		
+		replica.filterShape = filterShape;
+		replica.weights = weights;
+		replica.precision = precision;
+		replica.stored = stored;
+		
+		replica.poolStride = poolStride;
+		replica.poolWindow = poolWindow;
+		replica.pool = pool;
+		replica.pad = pad;
+		
+		replica.inputShape = inputShape;
+		replica.outputShape = outputShape;
+		replica.pooledOutShape = pooledOutShape;
+		replica.padLayers = padLayers;
+		
+		return replica.getReady();
+	}
+	
 	public Conv2D init(int[] inputShape) {
 		
 		if (inputShape.length != 3)
@@ -108,9 +138,10 @@ public class Conv2D implements Serializable {
 		
 		filterShape[2] = inputShape[2];
 		
-		filters = new Filter[filterCount];
-		for (int i = 0; i < filters.length; i++)
-			filters[i] = new Filter(filterShape);
+		weights = new float[filterCount * getFilterSize()];
+		for (int i = 0; i < filterCount; i++)
+			new Filter(filterShape).pack(weights, i * getFilterSize());
+		narrow();
 		
 		this.inputShape = inputShape;
 		
@@ -124,8 +155,16 @@ public class Conv2D implements Serializable {
 		
 		outputShape[2] = filterCount;
 		
-		pooledOutShape = Matrix.afterPool(outputShape, poolStride);
-		pooledOutShape[2] = filterCount;
+		if (getPool() == POOLING.NONE)
+			pooledOutShape = new int[] {outputShape[0], outputShape[1], filterCount};
+		else if (getPool() == POOLING.GLOBAL_AVG)
+			pooledOutShape = new int[] {1, 1, filterCount};
+		else {
+			if (getPoolWindow() > outputShape[0] || getPoolWindow() > outputShape[1])
+				throw new RuntimeException("Pool window exceeds the conv output shape");
+			
+			pooledOutShape = new int[] {(outputShape[0] - getPoolWindow()) / poolStride + 1, (outputShape[1] - getPoolWindow()) / poolStride + 1, filterCount};
+		}
 		
 		getReady();
 		return this;
@@ -133,34 +172,108 @@ public class Conv2D implements Serializable {
 	
 	public Matrix[] computeOutput(Matrix[] unpaddedInput) {
 		
-		Matrix[] input;
+		int channels = getInputShape()[2];
+		int inputSize = getInputShape()[0] * getInputShape()[1];
 		
-		if (getPad() == PADDING.ORIGINAL) {
-			input = new Matrix[unpaddedInput.length];
-			
-			for (int i = 0; i < unpaddedInput.length; i++)
-				input[i] = Matrix.zeroPad(unpaddedInput[i], getPadLayers()[0], getPadLayers()[1]);
-		} else
-			input = unpaddedInput;
+		volume = Kernels.ensure(volume, channels * inputSize);
+		for (int i = 0; i < channels; i++)
+			System.arraycopy(unpaddedInput[i].flatten().get(), 0, volume, i * inputSize, inputSize);
 		
-		Matrix[] raw = new Matrix[getFilterCount()];
-		for (int i = 0; i < getFilterCount(); i++) {
-			
-			raw[i] = getFilters()[i].convolve(input);			
-			getActivation().compute(raw[i].flatten());
-			
-			outVal[i] = getActivation().getValueReshaped(getOutputShape()[0], getOutputShape()[1]);
-			outDer[i] = getActivation().getDerivativeReshaped(getOutputShape()[0], getOutputShape()[1]);
-			
-			if (getPool() == POOLING.MAX)
-				pooledOutVal[i] = Matrix.maxPooling(outVal[i], poolStride);
-			else if (getPool() == POOLING.AVG)
-				pooledOutVal[i] = Matrix.averagePooling(outVal[i], poolStride);
-			else
-				pooledOutVal[i] = outVal[i];
-		}
+		computeOutput(volume);
+		return copyPooledOutVal();
+	}
+	
+	//Takes a planar (channels x rows x cols) input and returns the planar pooled maps. The result is this layer's own
+	//buffer, valid until the next call
+	public float[] computeOutput(float[] input) {
+		
+		return computeOutput(input, true);
+	}
+	
+	//Without training the activation derivatives backpropagation would read are not computed
+	public float[] computeOutput(float[] input, boolean training) {
+		
+		int mapSize = getOutputShape()[0] * getOutputShape()[1];
+		
+		columns = Kernels.ensure(columns, getFilterSize() * mapSize);
+		Kernels.im2col(input, getInputShape()[2], getInputShape()[0], getInputShape()[1], getFilterShape()[0], getFilterShape()[1],
+				getPadRows(), getPadCols(), getOutputShape()[0], getOutputShape()[1], columns);
+		
+		raw = Kernels.ensure(raw, getFilterCount() * mapSize);
+		if (training)
+			derivative = Kernels.ensure(derivative, getFilterCount() * mapSize);
+		Kernels.mult(widenFilters(), columns, raw, getFilterCount(), getFilterSize(), mapSize);
+		
+		for (int i = 0; i < getFilterCount(); i++)
+			getActivation().compute(raw, raw, training ? derivative : null, i * mapSize, mapSize);
+		
+		if (getPool() == POOLING.NONE)
+			return raw;
+		
+		pooled = Kernels.ensure(pooled, getPooledOutSize());
+		poolIndex = Kernels.ensure(poolIndex, getPooledOutSize());
+		
+		Kernels.pool(raw, getFilterCount(), getOutputShape()[0], getOutputShape()[1], getPoolRows(), getPoolCols(), poolStride,
+				getPooledOutShape()[0], getPooledOutShape()[1], getPool() == POOLING.MAX, pooled, poolIndex);
+		return pooled;
+	}
+	
+	//Lays the last pooled maps out in the model's orientation, reusing the same Vector every call
+	public Vector flatten(String orientation) {
+		
+		if (flatOutput == null || flatOutput.getLength() != getPooledOutSize())
+			flatOutput = new Vector(getPooledOutSize());
+		
+		float[] maps = getPooledOutput();
+		if (orientation.equals("horizontal"))
+			Kernels.fromPlanar(maps, flatOutput.get(), getPooledOutShape()[0], getPooledOutShape()[1], getPooledOutShape()[2]);
+		else
+			System.arraycopy(maps, 0, flatOutput.get(), 0, getPooledOutSize());
 		
-		return pooledOutVal;
+		return flatOutput;
+	}
+	
+	public void accumulateGradient(float[] error, float[] gradient) {
+		
+		int mapSize = getOutputShape()[0] * getOutputShape()[1];
+		Kernels.multTransB(error, columns, gradient, getFilterCount(), mapSize, getFilterSize(), true);
+	}
+	
+	public Matrix[] computeInputError(float[] error) {
+		
+		int channels = getInputShape()[2];
+		int inputSize = getInputShape()[0] * getInputShape()[1];
+		
+		volumeError = Kernels.ensure(volumeError, channels * inputSize);
+		computeInputError(error, volumeError);
+		
+		Matrix[] inputError = new Matrix[channels];
+		for (int i = 0; i < channels; i++)
+			inputError[i] = new Matrix(Arrays.copyOfRange(volumeError, i * inputSize, (i + 1) * inputSize), getInputShape()[0], getInputShape()[1]);
+		
+		return inputError;
+	}
+	
+	//Writes the planar (channels x rows x cols) error of this layer's input into inputError
+	public void computeInputError(float[] error, float[] inputError) {
+		
+		int mapSize = getOutputShape()[0] * getOutputShape()[1];
+		
+		columnError = Kernels.ensure(columnError, getFilterSize() * mapSize);
+		Kernels.multTransA(stored != null ? widened : weights, error, columnError, getFilterSize(), getFilterCount(), mapSize, false);
+		Kernels.col2im(columnError, getInputShape()[2], getInputShape()[0], getInputShape()[1], getFilterShape()[0], getFilterShape()[1],
+				getPadRows(), getPadCols(), getOutputShape()[0], getOutputShape()[1], inputError);
+	}
+	
+	//The filter bank is small next to the columns it multiplies, so it is widened whole and reused by the backward pass
+	private float[] widenFilters() {
+		
+		if (stored == null)
+			return weights;
+		
+		widened = Kernels.ensure(widened, weights.length);
+		Kernels.widen(stored, 0, widened, weights.length, getPrecision());
+		return widened;
 	}
 	
 	public Matrix[] computeOutput(Vector input, String orientation) {
@@ -168,6 +281,17 @@ public class Conv2D implements Serializable {
 		return computeOutput(toInputVolume(input, orientation));
 	}
 	
+	//The vertical layout is already planar and is used as is, the horizontal one is rearranged into a reused buffer
+	public float[] toPlanar(Vector input, String orientation) {
+		
+		if (orientation.equals("vertical"))
+			return input.get();
+		
+		volume = Kernels.ensure(volume, getInputSize());
+		Kernels.toPlanar(input.get(), volume, getInputShape()[0], getInputShape()[1], getInputShape()[2]);
+		return volume;
+	}
+	
 	public Matrix[] toInputVolume(Vector input, String orientation) {
 		
 		if (orientation.equals("horizontal")) {
@@ -181,23 +305,114 @@ public class Conv2D implements Serializable {
 	
 	public Matrix[] toErrorVolume(Vector error, String orientation) {
 		
+		return toErrorVolume(error.get(), orientation);
+	}
+	
+	public Matrix[] toErrorVolume(float[] error, String orientation) {
+		
 		if (orientation.equals("horizontal")) {
-			Matrix undivided = new Matrix(error.get(), getPooledOutShape()[0], getPooledOutShape()[1] * getPooledOutShape()[2]);
+			Matrix undivided = new Matrix(error, getPooledOutShape()[0], getPooledOutShape()[1] * getPooledOutShape()[2]);
 			return undivided.divideHor(getPooledOutShape()[2]);
 		} else {
-			Matrix undivided = new Matrix(error.get(), getPooledOutShape()[0] * getPooledOutShape()[2], getPooledOutShape()[1]);
+			Matrix undivided = new Matrix(error, getPooledOutShape()[0] * getPooledOutShape()[2], getPooledOutShape()[1]);
 			return undivided.divideVer(getPooledOutShape()[2]);
 		}
 	}
 	
-	public Conv2D randomize(float deviation) {for (Filter filter : filters) filter.randomize(deviation); return this;}
+	//Copies out of the packed weights, changes only take effect through setFilters()
+	public Filter[] copyFilters() {
+		
+		Filter[] result = new Filter[getFilterCount()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = new Filter(getFilterShape(), weights, i * getFilterSize());
+		return result;
+	}
+	
+	public Conv2D setFilters(Filter[] filters) {
+		
+		if (filters.length != getFilterCount())
+			throw new RuntimeException("Filter count mismatch in setFilters()");
+		
+		for (int i = 0; i < filters.length; i++)
+			filters[i].pack(weights, i * getFilterSize());
+		
+		narrow();
+		return this;
+	}
+	
+	public Conv2D randomize(float deviation) {
+		
+		for (int i = 0; i < getFilterCount(); i++)
+			new Filter(getFilterShape()).randomize(deviation).pack(weights, i * getFilterSize());
+		
+		narrow();
+		return this;
+	}
+	
+	public Conv2D setPrecision(Sequential.PRECISION precision) {
+		
+		this.precision = precision;
+		if (precision == Sequential.PRECISION.FP32)
+			stored = null;
+		
+		narrow();
+		return this;
+	}
+	
+	//Rounds the fp32 masters into the stored copy, in place so replicas sharing it see the update
+	void narrow() {
+		
+		if (getPrecision() == Sequential.PRECISION.FP32 || weights == null)
+			return;
+		
+		if (stored == null || stored.length != weights.length)
+			stored = new short[weights.length];
+		Kernels.narrow(weights, stored, weights.length, getPrecision());
+	}
+	
+	private Matrix[] toMaps(float[] data, int rows, int cols) {
+		
+		Matrix[] maps = new Matrix[getFilterCount()];
+		if (data == null)
+			return maps;
+		
+		for (int i = 0; i < maps.length; i++)
+			maps[i] = new Matrix(Arrays.copyOfRange(data, i * rows * cols, (i + 1) * rows * cols), rows, cols);
+		return maps;
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		
+		in.defaultReadObject();
+		
+		if (weights == null && filters != null) {
+			weights = new float[getFilterCount() * getFilterSize()];
+			setFilters(filters);
+		}
+		filters = null;
+	}
+	
 	public Conv2D getReady() {ready = true; return this;}
 	public Vector getFlatOutput() {return flatOutput;}
 	public Conv2D copy() {return new Conv2D(this);}
-	public Filter[] getFilters() {return filters;}
-	public Matrix[] getOutVal() {return outVal;}
-	public Matrix[] getOutDer() {return outDer;}
-	public Matrix[] getPooledOutVal() {return pooledOutVal;}
+	public Matrix[] copyOutVal() {return toMaps(raw, getOutputShape()[0], getOutputShape()[1]);}
+	public Matrix[] copyOutDer() {return toMaps(derivative, getOutputShape()[0], getOutputShape()[1]);}
+	public Matrix[] copyPooledOutVal() {return getPool() == POOLING.NONE ? copyOutVal() : toMaps(pooled, getPooledOutShape()[0], getPooledOutShape()[1]);}
+	
+	//These used to return the layer's live state, which is packed now, so they return copies like the copy methods do
+	@Deprecated
+	public Filter[] getFilters() {return copyFilters();}
+	@Deprecated
+	public Matrix[] getOutVal() {return copyOutVal();}
+	@Deprecated
+	public Matrix[] getOutDer() {return copyOutDer();}
+	@Deprecated
+	public Matrix[] getPooledOutVal() {return copyPooledOutVal();}
+	
+	public float[] getRawFilters() {return weights;}
+	float[] getRawOutput() {return raw;}
+	float[] getRawDerivative() {return derivative;}
+	float[] getPooledOutput() {return getPool() == POOLING.NONE ? raw : pooled;}
 	public int getFilterCount() {return filterCount;}
 	public int[] getFilterShape() {return filterShape;}
 	public int[] getInputShape() {return inputShape;}
@@ -207,14 +422,23 @@ public class Conv2D implements Serializable {
 	public int getPooledOutSize() {return pooledOutShape[0] * pooledOutShape[1] * pooledOutShape[2];}
 	public int getFilterSize() {return filterShape[0] * filterShape[1] * filterShape[2];}
 	public int getPoolStride() {return poolStride;}
+	public int getPoolWindow() {return poolWindow > 0 ? poolWindow : poolStride;}
+	public int getPoolRows() {return getPool() == POOLING.GLOBAL_AVG ? outputShape[0] : getPoolWindow();}
+	public int getPoolCols() {return getPool() == POOLING.GLOBAL_AVG ? outputShape[1] : getPoolWindow();}
+	int[] getPoolIndex() {return poolIndex;}
 	public ActivationFunction getActivation() {return activation;}
 	public Sequential.ACTIVATION getLabel(){return actLabel;}
 	public PADDING getPad() {return pad;}
 	public int[] getPadLayers() {return padLayers;}
+	public int getPadRows() {return getPad() == PADDING.ORIGINAL ? padLayers[0] : 0;}
+	public int getPadCols() {return getPad() == PADDING.ORIGINAL ? padLayers[1] : 0;}
 	public POOLING getPool() {return pool;}
 	public boolean isReady() {return ready;}
+	public Sequential.PRECISION getPrecision() {return precision != null ? precision : Sequential.PRECISION.FP32;}
+	short[] getStored() {return stored;}
 	
-	public Conv2D setPool(POOLING method, int stride) {pool = method; poolStride = stride; return this;}
+	public Conv2D setPool(POOLING method, int stride) {return setPool(method, stride, stride);}
+	public Conv2D setPool(POOLING method, int window, int stride) {pool = method; poolWindow = window; poolStride = stride; return this;}
 	public Conv2D setPad(PADDING method) {pad = method; return this;}
 	public Conv2D setFlat(Vector flat) {flatOutput = flat; return this;}
 }
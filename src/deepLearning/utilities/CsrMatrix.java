@@ -0,0 +1,54 @@
+package deepLearning.utilities;
+
+//Compressed sparse rows of a row major (rows x cols) matrix, only the non zero entries are kept
+final class CsrMatrix {
+	
+	private final int rows;
+	private final int[] rowStart, columns;
+	private final float[] values;
+	
+	CsrMatrix(float[] dense, int rows, int cols) {
+		
+		this.rows = rows;
+		rowStart = new int[rows + 1];
+		
+		int nonZeros = 0;
+		for (float value : dense)
+			if (value != 0.0f)
+				nonZeros++;
+		
+		columns = new int[nonZeros];
+		values = new float[nonZeros];
+		
+		int p = 0;
+		for (int i = 0; i < rows; i++) {
+			rowStart[i] = p;
+			for (int j = 0; j < cols; j++) {
+				float value = dense[i * cols + j];
+				if (value != 0.0f) {
+					columns[p] = j;
+					values[p++] = value;
+				}
+			}
+		}
+		rowStart[rows] = p;
+	}
+	
+	//y = A * x
+	void mult(float[] x, float[] y) {
+		
+		mult(x, 0, y, 0);
+	}
+	
+	void mult(float[] x, int xOff, float[] y, int yOff) {
+		
+		for (int i = 0; i < rows; i++) {
+			float sum = 0.0f;
+			for (int p = rowStart[i]; p < rowStart[i + 1]; p++)
+				sum += values[p] * x[xOff + columns[p]];
+			y[yOff + i] = sum;
+		}
+	}
+	
+	int getNonZeros() {return values.length;}
+}
@@ -0,0 +1,241 @@
+package deepLearning.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import tensors.Float.*;
+
+//Training data file, all values little endian:
+//header: MAGIC, VERSION, rows, input size, label size (5 ints)
+//rows:   rows * (inputSize + labelSize) floats, every row holds its input followed by its label
+//The rows are memory mapped read only in segments of whole rows, so samples are read straight out of the page cache
+//and several processes mapping the same file share one copy of it
+public class DataFile implements Dataset {
+	
+	static final int MAGIC = 0x53444C44;
+	static final int VERSION = 1;
+	
+	private static final int HEADER_BYTES = 5 * 4;
+	private static final int WRITE_CHUNK = 1 << 16;
+	
+	private final int rows, inputSize, labelSize, rowSize, rowsPerSegment;
+	private final FloatBuffer[] segments;
+	
+	private DataFile(int rows, int inputSize, int labelSize, FloatBuffer[] segments, int rowsPerSegment) {
+		
+		this.rows = rows;
+		this.inputSize = inputSize;
+		this.labelSize = labelSize;
+		this.segments = segments;
+		this.rowsPerSegment = rowsPerSegment;
+		rowSize = inputSize + labelSize;
+	}
+	
+	public static DataFile open(String path) {
+		
+		try (RandomAccessFile file = new RandomAccessFile(new File(path), "r"); FileChannel channel = file.getChannel()) {
+			
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC)
+				throw new RuntimeException("Not a data file: bad magic number");
+			
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new RuntimeException("Unsupported data file version: " + version);
+			
+			int rows = header.getInt();
+			int inputSize = header.getInt();
+			int labelSize = header.getInt();
+			
+			long rowBytes = 4L * (inputSize + labelSize);
+			if (channel.size() < HEADER_BYTES + rows * rowBytes)
+				throw new RuntimeException("Truncated data file: expected " + rows + " rows");
+			
+			int rowsPerSegment = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+			FloatBuffer[] segments = new FloatBuffer[(rows + rowsPerSegment - 1) / rowsPerSegment];
+			
+			for (int i = 0; i < segments.length; i++) {
+				long first = (long) i * rowsPerSegment;
+				long count = Math.min(rowsPerSegment, rows - first);
+				
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * rowBytes, count * rowBytes)
+						.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			}
+			
+			return new DataFile(rows, inputSize, labelSize, segments, rowsPerSegment);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public static DataFile write(String path, Dataset source) {
+		
+		float[] input = new float[source.getInputSize()];
+		float[] label = new float[source.getLabelSize()];
+		
+		try (Writer writer = new Writer(path, source.getInputSize(), source.getLabelSize())) {
+			
+			for (int i = 0; i < source.size(); i++) {
+				source.read(i, input, 0, label, 0);
+				writer.append(input, label);
+			}
+		}
+		return open(path);
+	}
+	
+	public static DataFile write(String path, Vector[] inputs, Vector[] labels) {
+		
+		return write(path, Dataset.of(inputs, labels));
+	}
+	
+	//Converts a CSV with inputSize feature columns followed by labelSize label columns, so it is only parsed once
+	public static DataFile fromCsv(String csvPath, String path, int inputSize, int labelSize, boolean skipHeader) {
+		
+		float[] input = new float[inputSize];
+		float[] label = new float[labelSize];
+		
+		try (BufferedReader reader = new BufferedReader(new FileReader(new File(csvPath)));
+				Writer writer = new Writer(path, inputSize, labelSize)) {
+			
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if ((skipHeader && lineNumber == 1) || line.trim().isEmpty())
+					continue;
+				
+				String[] fields = line.split(",");
+				if (fields.length != inputSize + labelSize)
+					throw new RuntimeException("Line " + lineNumber + " has " + fields.length + " columns, expected " + (inputSize + labelSize));
+				
+				for (int i = 0; i < inputSize; i++)
+					input[i] = Float.parseFloat(fields[i].trim());
+				for (int i = 0; i < labelSize; i++)
+					label[i] = Float.parseFloat(fields[inputSize + i].trim());
+				
+				writer.append(input, label);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return open(path);
+	}
+	
+	public static class Writer implements AutoCloseable {
+		
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final int inputSize, labelSize;
+		private int rows;
+		
+		public Writer(String path, int inputSize, int labelSize) {
+			
+			this.inputSize = inputSize;
+			this.labelSize = labelSize;
+			
+			try {
+				file = new RandomAccessFile(new File(path), "rw");
+				file.setLength(0);
+				channel = file.getChannel();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			
+			buffer = ByteBuffer.allocateDirect(Math.max(WRITE_CHUNK, 4 * (inputSize + labelSize))).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.position(HEADER_BYTES);
+			rows = 0;
+		}
+		
+		public Writer append(float[] input, float[] label) {
+			
+			if (input.length != inputSize || label.length != labelSize)
+				throw new RuntimeException("Row dimensions mismatch with the data file input and label sizes");
+			
+			if (buffer.remaining() < 4 * (inputSize + labelSize))
+				flush();
+			
+			buffer.asFloatBuffer().put(input).put(label);
+			buffer.position(buffer.position() + 4 * (inputSize + labelSize));
+			rows++;
+			return this;
+		}
+		
+		private void flush() {
+			
+			try {
+				buffer.flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				buffer.clear();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		@Override
+		public void close() {
+			
+			flush();
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(inputSize).putInt(labelSize);
+			header.flip();
+			
+			try {
+				while (header.hasRemaining())
+					channel.write(header, HEADER_BYTES - header.remaining());
+				channel.close();
+				file.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		public int getRows() {return rows;}
+	}
+	
+	@Override
+	public void read(int index, float[] input, int inputOffset, float[] label, int labelOffset) {
+		
+		FloatBuffer segment = segments[index / rowsPerSegment];
+		int position = (index % rowsPerSegment) * rowSize;
+		
+		for (int i = 0; i < inputSize; i++)
+			input[inputOffset + i] = segment.get(position + i);
+		
+		position += inputSize;
+		for (int i = 0; i < labelSize; i++)
+			label[labelOffset + i] = segment.get(position + i);
+	}
+	
+	//Zero-copy views into the mapped file, valid for as long as the DataFile is reachable
+	public FloatBuffer getInputView(int index) {return view(index, 0, inputSize);}
+	public FloatBuffer getLabelView(int index) {return view(index, inputSize, labelSize);}
+	
+	private FloatBuffer view(int index, int offset, int length) {
+		
+		FloatBuffer view = segments[index / rowsPerSegment].duplicate();
+		int position = (index % rowsPerSegment) * rowSize + offset;
+		
+		view.limit(position + length);
+		view.position(position);
+		return view.slice();
+	}
+	
+	@Override
+	public int size() {return rows;}
+	
+	@Override
+	public int getInputSize() {return inputSize;}
+	
+	@Override
+	public int getLabelSize() {return labelSize;}
+}
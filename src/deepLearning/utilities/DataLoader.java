@@ -0,0 +1,466 @@
+package deepLearning.utilities;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+//Turns a Dataset or a sample stream into mini-batches of flat row-major buffers. Every call to iterator() is one epoch.
+//Heap use is bounded by the batch buffers, the shuffle buffer and, for a Dataset, one int per sample of index order
+public class DataLoader implements Iterable<DataLoader.Batch> {
+	
+	public static class Sample {
+		
+		private final float[] input, label;
+		
+		public Sample(float[] input, float[] label) {
+			
+			this.input = input;
+			this.label = label;
+		}
+		
+		public float[] getInput() {return input;}
+		public float[] getLabel() {return label;}
+	}
+	
+	public static class Batch {
+		
+		private final float[] inputs, labels;
+		private final int[] indexes;
+		private int size;
+		private RuntimeException error;
+		
+		private Batch(int batchSize, int inputSize, int labelSize) {
+			
+			inputs = new float[batchSize * inputSize];
+			labels = new float[batchSize * labelSize];
+			indexes = new int[batchSize];
+		}
+		
+		public float[] getInputs() {return inputs;}
+		public float[] getLabels() {return labels;}
+		public int[] getIndexes() {return indexes;}
+		public int getSize() {return size;}
+	}
+	
+	private final Dataset dataset;
+	private final Iterable<Sample> stream;
+	private final int inputSize, labelSize;
+	
+	private int[] subset;
+	private int batchSize;
+	private boolean shuffle;
+	private int shuffleBuffer;
+	private int prefetch;
+	private Random random;
+	
+	public DataLoader(Dataset dataset) {
+		
+		this(dataset, null, dataset.getInputSize(), dataset.getLabelSize());
+	}
+	
+	public DataLoader(Iterable<Sample> stream, int inputSize, int labelSize) {
+		
+		this(null, stream, inputSize, labelSize);
+	}
+	
+	private DataLoader(Dataset dataset, Iterable<Sample> stream, int inputSize, int labelSize) {
+		
+		this.dataset = dataset;
+		this.stream = stream;
+		this.inputSize = inputSize;
+		this.labelSize = labelSize;
+		
+		batchSize = 1;
+		shuffle = false;
+		shuffleBuffer = 0;
+		prefetch = 0;
+		random = new Random();
+	}
+	
+	public DataLoader batchSize(int size) {
+		
+		if (size < 1)
+			throw new RuntimeException("Batch size must be greater than 0");
+		
+		batchSize = size;
+		return this;
+	}
+	
+	//A buffer of 0 shuffles a Dataset with a full permutation. Otherwise a Dataset is shuffled in chunks of that many
+	//consecutive rows (chunk order and order within a chunk), and a stream is shuffled through a buffer of that many samples
+	public DataLoader shuffle(boolean shuffled, int buffer) {
+		
+		if (buffer < 0)
+			throw new RuntimeException("Shuffle buffer must not be negative");
+		
+		if (shuffled && buffer == 0 && dataset == null)
+			throw new RuntimeException("Shuffling a stream requires a shuffle buffer");
+		
+		shuffle = shuffled;
+		shuffleBuffer = buffer;
+		return this;
+	}
+	
+	public DataLoader shuffle(boolean shuffled) {return shuffle(shuffled, 0);}
+	
+	//Number of batches prepared ahead on a background thread, 0 reads on the caller thread
+	public DataLoader prefetch(int batches) {
+		
+		if (batches < 0)
+			throw new RuntimeException("Prefetch must not be negative");
+		
+		prefetch = batches;
+		return this;
+	}
+	
+	public DataLoader subset(int[] indexes) {
+		
+		if (dataset == null)
+			throw new RuntimeException("Only a Dataset loader can be restricted to a subset");
+		
+		subset = indexes;
+		return this;
+	}
+	
+	public DataLoader seed(long seed) {random = new Random(seed); return this;}
+	
+	//An epoch that may stop early has to be closed, with prefetch on that stops the producer thread and frees its batches.
+	//Closing after the last batch does nothing
+	public interface BatchIterator extends Iterator<Batch>, AutoCloseable {
+		
+		@Override
+		void close();
+	}
+	
+	@Override
+	public BatchIterator iterator() {
+		
+		Source source = dataset != null ? new IndexedSource() : new StreamSource();
+		return prefetch > 0 ? new PrefetchIterator(source) : new DirectIterator(source);
+	}
+	
+	private interface Source {
+		
+		//Fills batch and returns false once the epoch is exhausted
+		boolean fill(Batch batch);
+	}
+	
+	private class IndexedSource implements Source {
+		
+		private final int[] order;
+		private int position;
+		
+		private IndexedSource() {
+			
+			if (subset != null)
+				order = subset.clone();
+			else {
+				order = new int[dataset.size()];
+				for (int i = 0; i < order.length; i++)
+					order[i] = i;
+			}
+			
+			if (shuffle)
+				shuffleOrder();
+			position = 0;
+		}
+		
+		private void shuffleOrder() {
+			
+			if (shuffleBuffer == 0 || shuffleBuffer >= order.length) {
+				shuffleRange(order, 0, order.length);
+				return;
+			}
+			
+			int chunks = (order.length + shuffleBuffer - 1) / shuffleBuffer;
+			int[] chunkOrder = new int[chunks];
+			for (int i = 0; i < chunks; i++)
+				chunkOrder[i] = i;
+			shuffleRange(chunkOrder, 0, chunks);
+			
+			int[] source = order.clone();
+			int position = 0;
+			for (int chunk : chunkOrder) {
+				int from = chunk * shuffleBuffer;
+				int length = Math.min(shuffleBuffer, source.length - from);
+				
+				System.arraycopy(source, from, order, position, length);
+				shuffleRange(order, position, position + length);
+				position += length;
+			}
+		}
+		
+		@Override
+		public boolean fill(Batch batch) {
+			
+			int count = Math.min(batchSize, order.length - position);
+			for (int i = 0; i < count; i++) {
+				int index = order[position++];
+				
+				batch.indexes[i] = index;
+				dataset.read(index, batch.inputs, i * inputSize, batch.labels, i * labelSize);
+			}
+			
+			batch.size = count;
+			return count > 0;
+		}
+	}
+	
+	private class StreamSource implements Source {
+		
+		private final Iterator<Sample> samples;
+		private final float[] bufferInputs, bufferLabels;
+		private final int[] bufferIndexes;
+		private int buffered, streamed;
+		
+		private StreamSource() {
+			
+			samples = stream.iterator();
+			
+			int capacity = shuffle ? shuffleBuffer : 0;
+			bufferInputs = new float[capacity * inputSize];
+			bufferLabels = new float[capacity * labelSize];
+			bufferIndexes = new int[capacity];
+			
+			buffered = 0;
+			streamed = 0;
+		}
+		
+		private void store(Sample sample, int slot) {
+			
+			checkSample(sample);
+			System.arraycopy(sample.input, 0, bufferInputs, slot * inputSize, inputSize);
+			System.arraycopy(sample.label, 0, bufferLabels, slot * labelSize, labelSize);
+			bufferIndexes[slot] = streamed++;
+		}
+		
+		private boolean next(Batch batch, int row) {
+			
+			if (!shuffle) {
+				if (!samples.hasNext())
+					return false;
+				
+				Sample sample = samples.next();
+				checkSample(sample);
+				System.arraycopy(sample.input, 0, batch.inputs, row * inputSize, inputSize);
+				System.arraycopy(sample.label, 0, batch.labels, row * labelSize, labelSize);
+				batch.indexes[row] = streamed++;
+				return true;
+			}
+			
+			while (buffered < bufferIndexes.length && samples.hasNext())
+				store(samples.next(), buffered++);
+			
+			if (buffered == 0)
+				return false;
+			
+			int slot = random.nextInt(buffered);
+			System.arraycopy(bufferInputs, slot * inputSize, batch.inputs, row * inputSize, inputSize);
+			System.arraycopy(bufferLabels, slot * labelSize, batch.labels, row * labelSize, labelSize);
+			batch.indexes[row] = bufferIndexes[slot];
+			
+			if (samples.hasNext())
+				store(samples.next(), slot);
+			else if (slot != --buffered) {
+				System.arraycopy(bufferInputs, buffered * inputSize, bufferInputs, slot * inputSize, inputSize);
+				System.arraycopy(bufferLabels, buffered * labelSize, bufferLabels, slot * labelSize, labelSize);
+				bufferIndexes[slot] = bufferIndexes[buffered];
+			}
+			return true;
+		}
+		
+		@Override
+		public boolean fill(Batch batch) {
+			
+			int count = 0;
+			while (count < batchSize && next(batch, count))
+				count++;
+			
+			batch.size = count;
+			return count > 0;
+		}
+		
+		private void checkSample(Sample sample) {
+			
+			if (sample.input.length != inputSize || sample.label.length != labelSize)
+				throw new RuntimeException("Sample dimensions mismatch with the loader input and label sizes");
+		}
+	}
+	
+	private class DirectIterator implements BatchIterator {
+		
+		private final Source source;
+		private final Batch batch;
+		private boolean ready, done;
+		
+		private DirectIterator(Source source) {
+			
+			this.source = source;
+			batch = new Batch(batchSize, inputSize, labelSize);
+		}
+		
+		@Override
+		public boolean hasNext() {
+			
+			if (!ready && !done) {
+				ready = source.fill(batch);
+				done = !ready;
+			}
+			return ready;
+		}
+		
+		@Override
+		public Batch next() {
+			
+			if (!hasNext())
+				throw new NoSuchElementException();
+			
+			ready = false;
+			return batch;
+		}
+		
+		@Override
+		public void close() {
+			
+			ready = false;
+			done = true;
+		}
+	}
+	
+	//Batches are recycled through a free queue, so the batch handed out by next() stays valid until the following next()
+	private class PrefetchIterator implements BatchIterator {
+		
+		private final BlockingQueue<Batch> filled, free;
+		private final Thread producer;
+		private Batch current, handed;
+		
+		//Checked between batches too, in case the source swallows the interrupt
+		private volatile boolean closed;
+		
+		private PrefetchIterator(Source source) {
+			
+			filled = new ArrayBlockingQueue<Batch>(prefetch + 2);
+			free = new ArrayBlockingQueue<Batch>(prefetch + 2);
+			for (int i = 0; i < prefetch + 1; i++)
+				free.add(new Batch(batchSize, inputSize, labelSize));
+			
+			producer = new Thread(() -> produce(source), "DataLoader-prefetch");
+			producer.setDaemon(true);
+			producer.start();
+		}
+		
+		private void produce(Source source) {
+			
+			try {
+				while (!closed) {
+					Batch batch = free.take();
+					
+					boolean more;
+					try {
+						more = source.fill(batch);
+					} catch (RuntimeException e) {
+						batch.error = e;
+						batch.size = 0;
+						more = false;
+					}
+					
+					if (!more)
+						batch.size = 0;
+					
+					filled.put(batch);
+					if (!more)
+						return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			
+			if (closed)
+				return false;
+			
+			if (current == null) {
+				if (handed != null && handed.size == 0)
+					return false;
+				
+				if (handed != null) {
+					free.add(handed);
+					handed = null;
+				}
+				
+				try {
+					current = filled.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+				
+				if (current.error != null)
+					throw current.error;
+			}
+			
+			if (current.size == 0) {
+				handed = current;
+				current = null;
+				return false;
+			}
+			return true;
+		}
+		
+		@Override
+		public Batch next() {
+			
+			if (!hasNext())
+				throw new NoSuchElementException();
+			
+			handed = current;
+			current = null;
+			return handed;
+		}
+		
+		//Waits for the producer to stop, so no thread outlives the epoch
+		@Override
+		public void close() {
+			
+			if (closed)
+				return;
+			
+			closed = true;
+			producer.interrupt();
+			
+			try {
+				producer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			
+			filled.clear();
+			free.clear();
+			current = null;
+			handed = null;
+		}
+	}
+	
+	private void shuffleRange(int[] array, int from, int to) {
+		
+		for (int i = to - 1; i > from; i--) {
+			int j = from + random.nextInt(i - from + 1);
+			int temp = array[i];
+			array[i] = array[j];
+			array[j] = temp;
+		}
+	}
+	
+	public Dataset getDataset() {return dataset;}
+	public int getBatchSize() {return batchSize;}
+	public int getInputSize() {return inputSize;}
+	public int getLabelSize() {return labelSize;}
+	public boolean isShuffled() {return shuffle;}
+	public int getShuffleBuffer() {return shuffleBuffer;}
+	public int getPrefetch() {return prefetch;}
+}
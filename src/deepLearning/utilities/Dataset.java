@@ -0,0 +1,129 @@
+package deepLearning.utilities;
+
+import tensors.Float.*;
+
+//Random access source of (input, label) rows, read straight into caller buffers so implementations can keep their
+//samples off-heap or on disk
+public interface Dataset {
+	
+	int size();
+	int getInputSize();
+	int getLabelSize();
+	
+	void read(int index, float[] input, int inputOffset, float[] label, int labelOffset);
+	
+	public static Dataset of(Vector[] inputs, Vector[] labels) {
+		
+		if (inputs.length != labels.length)
+			throw new RuntimeException("Train set and label set length must be equal");
+		
+		if (inputs.length == 0)
+			throw new RuntimeException("Cannot build an empty dataset");
+		
+		return new Dataset() {
+			
+			@Override
+			public int size() {return inputs.length;}
+			
+			@Override
+			public int getInputSize() {return inputs[0].getLength();}
+			
+			@Override
+			public int getLabelSize() {return labels[0].getLength();}
+			
+			@Override
+			public void read(int index, float[] input, int inputOffset, float[] label, int labelOffset) {
+				
+				if (inputs[index].getLength() != getInputSize())
+					throw new RuntimeException("Input dimensions mismatch with the network input shape");
+				
+				System.arraycopy(inputs[index].get(), 0, input, inputOffset, getInputSize());
+				System.arraycopy(labels[index].get(), 0, label, labelOffset, getLabelSize());
+			}
+		};
+	}
+	
+	public static Dataset of(float[] inputs, float[] labels, int inputSize, int labelSize) {
+		
+		int count = inputs.length / inputSize;
+		if (count * inputSize != inputs.length || count * labelSize != labels.length)
+			throw new RuntimeException("Flat inputs and labels do not hold the same number of rows");
+		
+		return new Dataset() {
+			
+			@Override
+			public int size() {return count;}
+			
+			@Override
+			public int getInputSize() {return inputSize;}
+			
+			@Override
+			public int getLabelSize() {return labelSize;}
+			
+			@Override
+			public void read(int index, float[] input, int inputOffset, float[] label, int labelOffset) {
+				
+				System.arraycopy(inputs, index * inputSize, input, inputOffset, inputSize);
+				System.arraycopy(labels, index * labelSize, label, labelOffset, labelSize);
+			}
+		};
+	}
+	
+	//Sparse labels, each row carries its class index as a single float instead of a one hot vector
+	public static Dataset of(Vector[] inputs, int[] classes) {
+		
+		if (inputs.length != classes.length)
+			throw new RuntimeException("Train set and label set length must be equal");
+		
+		if (inputs.length == 0)
+			throw new RuntimeException("Cannot build an empty dataset");
+		
+		return new Dataset() {
+			
+			@Override
+			public int size() {return inputs.length;}
+			
+			@Override
+			public int getInputSize() {return inputs[0].getLength();}
+			
+			@Override
+			public int getLabelSize() {return 1;}
+			
+			@Override
+			public void read(int index, float[] input, int inputOffset, float[] label, int labelOffset) {
+				
+				if (inputs[index].getLength() != getInputSize())
+					throw new RuntimeException("Input dimensions mismatch with the network input shape");
+				
+				System.arraycopy(inputs[index].get(), 0, input, inputOffset, getInputSize());
+				label[labelOffset] = classes[index];
+			}
+		};
+	}
+	
+	public static Dataset of(float[] inputs, int[] classes, int inputSize) {
+		
+		int count = inputs.length / inputSize;
+		if (count * inputSize != inputs.length || count != classes.length)
+			throw new RuntimeException("Flat inputs and labels do not hold the same number of rows");
+		
+		return new Dataset() {
+			
+			@Override
+			public int size() {return count;}
+			
+			@Override
+			public int getInputSize() {return inputSize;}
+			
+			@Override
+			public int getLabelSize() {return 1;}
+			
+			@Override
+			public void read(int index, float[] input, int inputOffset, float[] label, int labelOffset) {
+				
+				System.arraycopy(inputs, index * inputSize, input, inputOffset, inputSize);
+				label[labelOffset] = classes[index];
+			}
+		};
+	}
+}
@@ -1,6 +1,9 @@
 package deepLearning.utilities;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 
 import tensors.Float.*;
 
@@ -11,8 +14,24 @@ public class Dense implements Serializable {
 	private int neurons;
 	private int inputShape;
 	
-	private Matrix weights;
-	private Vector bias, outVal, outDer;
+	private float[] weights, bias;
+	private Vector outVal, outDer;
+	
+	//False where a weight was pruned and has to stay zero while fine-tuning, null while the layer is dense
+	private boolean[] mask;
+	
+	//Half precision copy of weights the passes read, null in FP32. weights stays the fp32 master the optimizer updates
+	private Sequential.PRECISION precision;
+	private short[] stored;
+	
+	private transient float[] batchVal, batchDer, widened;
+	
+	//Log probabilities of a softmax output trained with cross entropy, see ActivationFunction.setLogSoftmax
+	private transient float[] logVal, batchLogVal;
+	private transient int batchSize;
+	
+	//Whether the last pass into outVal or batchVal filled the derivatives too, an inference pass leaves them stale
+	private transient boolean derived, batchDerived;
 	
 	private Sequential.ACTIVATION actLabel;
 	private ActivationFunction activation;
@@ -41,14 +60,19 @@ public class Dense implements Serializable {
 		actLabel = copied.actLabel;
 		
 		activation = new ActivationFunction(actLabel);
+		precision = copied.precision;
 		ready = copied.isReady();
 		
 		if (ready) {
 			
-			weights = copied.weights.copy();
-			bias = copied.bias.copy();
+			weights = copied.weights.clone();
+			bias = copied.bias.clone();
+			mask = copied.mask != null ? copied.mask.clone() : null;
+			stored = copied.stored != null ? copied.stored.clone() : null;
 			
 			inputShape = copied.getInputShape();
+			outVal = new Vector(neurons);
+			outDer = new Vector(neurons);
 		}
 	}
 	
@@ -57,53 +81,274 @@ public class Dense implements Serializable {
 		outVal = new Vector(getNeurons());
 		outDer = new Vector(getNeurons());
 		
-		bias = new Vector(getNeurons());
-		bias.randomize(1.0f);
-		
-		weights = new Matrix(getNeurons(), inputShape);
-		weights.randomize(1.0f);
+		this.inputShape = inputShape;
+		randomize(1.0f);
 		
+		float scale;
 		if (getLabel() == Sequential.ACTIVATION.RELU)
-			weights.mult((float) Math.sqrt(2.0f / inputShape));
+			scale = (float) Math.sqrt(2.0f / inputShape);
 		else
-			weights.mult(1.0f / (float) Math.sqrt(inputShape));
+			scale = 1.0f / (float) Math.sqrt(inputShape);
 		
-		this.inputShape = inputShape;
+		for (int i = 0; i < weights.length; i++)
+			weights[i] *= scale;
 		
+		narrow();
 		getReady();
 		return this;
 	}
 	
 	public Vector computeOutput(Vector inputs) {
 		
-		Vector raw = Vector.mult(weights, inputs);
-		raw.add(bias);
-		getActivation().compute(raw);
+		return computeOutput(inputs, true);
+	}
+	
+	//Without training the derivatives are left stale, backpropagate only after a training pass
+	public Vector computeOutput(Vector inputs, boolean training) {
+		
+		float[] val = outVal.get();
+		multWeightsTransposed(inputs.get(), val, 1);
 		
-		outVal = getActivation().getValue();
-		outDer = getActivation().getDerivative();
+		float[] log = null;
+		if (training && getActivation().isLogSoftmax())
+			log = logVal = Kernels.ensure(logVal, getNeurons());
+		getActivation().compute(val, bias, val, training ? outDer.get() : null, log, 0, getNeurons());
+		derived = training;
 		
 		return outVal;
 	}
 	
+	public float[] computeOutput(float[] inputs, int batchSize) {
+		
+		return computeOutput(inputs, batchSize, true);
+	}
+	
+	public float[] computeOutput(float[] inputs, int batchSize, boolean training) {
+		
+		int length = batchSize * getNeurons();
+		batchVal = Kernels.ensure(batchVal, length);
+		if (training) {
+			batchDer = Kernels.ensure(batchDer, length);
+			this.batchSize = batchSize;
+		}
+		
+		float[] log = null;
+		if (training && getActivation().isLogSoftmax())
+			log = batchLogVal = Kernels.ensure(batchLogVal, length);
+		batchDerived = training;
+		
+		multWeightsTransposed(inputs, batchVal, batchSize);
+		
+		for (int i = 0; i < batchSize; i++)
+			getActivation().compute(batchVal, bias, batchVal, training ? batchDer : null, log, i * getNeurons(), getNeurons());
+		
+		return batchVal;
+	}
+	
+	//out(rows x neurons) = inputs(rows x inputShape) * weights^T
+	private void multWeightsTransposed(float[] inputs, float[] out, int rows) {
+		
+		if (stored == null) {
+			Kernels.multTransB(inputs, weights, out, rows, getInputShape(), getNeurons());
+			return;
+		}
+		
+		widened = Kernels.ensure(widened, getInputShape());
+		Kernels.multTransB(inputs, stored, out, rows, getInputShape(), getNeurons(), getPrecision(), widened);
+	}
+	
+	//result(rows x inputShape) = err(rows x neurons) * weights, the error sent back to the previous layer
+	void multWeights(float[] err, float[] result, int rows) {
+		
+		if (stored == null) {
+			Kernels.mult(err, weights, result, rows, getNeurons(), getInputShape());
+			return;
+		}
+		
+		widened = Kernels.ensure(widened, getInputShape());
+		Kernels.mult(err, stored, result, rows, getNeurons(), getInputShape(), getPrecision(), widened);
+	}
+	
 	public Dense randomize(float deviation) {
 		
-		getWeights().randomize(deviation);
-		getBias().randomize(deviation);
+		Matrix randWeights = new Matrix(getNeurons(), getInputShape());
+		randWeights.randomize(deviation);
+		weights = randWeights.flatten().get();
+		
+		Vector randBias = new Vector(getNeurons());
+		randBias.randomize(deviation);
+		bias = randBias.get();
+		
+		narrow();
+		return this;
+	}
+	
+	Dense replica() {
+		
+		Dense replica = new Dense(neurons, actLabel);
+		
+		replica.weights = weights;
+		replica.bias = bias;
+		replica.mask = mask;
+		replica.precision = precision;
+		replica.stored = stored;
+		
+		replica.inputShape = inputShape;
+		replica.outVal = new Vector(neurons);
+		replica.outDer = new Vector(neurons);
+		
+		return replica.getReady();
+	}
+	
+	//Zeroes every weight whose magnitude is below threshold and keeps it out of later updates
+	public Dense prune(float threshold) {
+		
+		if (mask == null) {
+			mask = new boolean[weights.length];
+			Arrays.fill(mask, true);
+		}
+		
+		for (int i = 0; i < weights.length; i++)
+			if (Math.abs(weights[i]) < threshold)
+				mask[i] = false;
+		
+		applyMask();
+		narrow();
 		return this;
 	}
 	
+	//Prunes the smallest magnitudes until the given fraction of the weights is zero
+	public Dense pruneTo(float sparsity) {
+		
+		if (sparsity < 0.0f || sparsity > 1.0f)
+			throw new RuntimeException("Sparsity must be between 0 and 1");
+		
+		float[] magnitudes = new float[weights.length];
+		for (int i = 0; i < weights.length; i++)
+			magnitudes[i] = Math.abs(weights[i]);
+		Arrays.sort(magnitudes);
+		
+		int count = (int) (sparsity * weights.length);
+		if (count == 0)
+			return this;
+		
+		return prune(count < weights.length ? magnitudes[count] : Float.POSITIVE_INFINITY);
+	}
+	
+	void applyMask() {
+		
+		if (mask == null)
+			return;
+		
+		for (int i = 0; i < weights.length; i++)
+			if (!mask[i])
+				weights[i] = 0.0f;
+	}
+	
+	public Dense setPrecision(Sequential.PRECISION precision) {
+		
+		this.precision = precision;
+		if (precision == Sequential.PRECISION.FP32)
+			stored = null;
+		
+		narrow();
+		return this;
+	}
+	
+	//Rounds the fp32 masters into the stored copy, in place so replicas sharing it see the update
+	void narrow() {
+		
+		if (getPrecision() == Sequential.PRECISION.FP32 || weights == null)
+			return;
+		
+		if (stored == null || stored.length != weights.length)
+			stored = new short[weights.length];
+		Kernels.narrow(weights, stored, weights.length, getPrecision());
+	}
+	
+	//Models serialized before the layers were flattened hold weights and bias as a Matrix and a Vector
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		
+		ObjectInputStream.GetField fields = in.readFields();
+		
+		neurons = fields.get("neurons", 0);
+		inputShape = fields.get("inputShape", 0);
+		
+		weights = toFloats(fields.get("weights", null));
+		bias = toFloats(fields.get("bias", null));
+		outVal = (Vector) fields.get("outVal", null);
+		outDer = (Vector) fields.get("outDer", null);
+		
+		mask = (boolean[]) fields.get("mask", null);
+		precision = (Sequential.PRECISION) fields.get("precision", null);
+		stored = (short[]) fields.get("stored", null);
+		
+		actLabel = (Sequential.ACTIVATION) fields.get("actLabel", null);
+		activation = (ActivationFunction) fields.get("activation", null);
+		ready = fields.get("ready", false);
+	}
+	
+	//A float[] field that was a Matrix, a Vector or an array of them before the layers were flattened, nested arrays are
+	//concatenated in order
+	static float[] toFloats(Object field) {
+		
+		if (field == null || field instanceof float[])
+			return (float[]) field;
+		
+		if (field instanceof Matrix)
+			return ((Matrix) field).flatten().get();
+		
+		if (field instanceof Vector)
+			return ((Vector) field).get();
+		
+		Object[] parts = (Object[]) field;
+		float[][] flat = new float[parts.length][];
+		int length = 0;
+		for (int i = 0; i < parts.length; i++) {
+			flat[i] = toFloats(parts[i]);
+			length += flat[i].length;
+		}
+		
+		float[] result = new float[length];
+		for (int i = 0, offset = 0; i < parts.length; offset += flat[i].length, i++)
+			System.arraycopy(flat[i], 0, result, offset, flat[i].length);
+		return result;
+	}
+	
+	public float getSparsity() {
+		
+		int zeros = 0;
+		for (float weight : weights)
+			if (weight == 0.0f)
+				zeros++;
+		return (float) zeros / weights.length;
+	}
+	
 	public Dense copy() {return new Dense(this);}
-	public Matrix getWeights() {return weights;}
-	public Vector getBias() {return bias;}
-	public Vector getValue() {return getActivation().getValue();}
-	public Vector getDerivative() {return getActivation().getDerivative();}
+	public Matrix getWeights() {return new Matrix(weights, neurons, inputShape);}
+	public Vector getBias() {return new Vector(bias);}
+	public float[] getRawWeights() {return weights;}
+	public float[] getRawBias() {return bias;}
+	public Vector getValue() {return outVal;}
+	public Vector getDerivative() {return outDer;}
 	public Vector getOutVal() {return outVal;}
 	public Vector getOutDer() {return outDer;}
+	public float[] getBatchVal() {return batchVal;}
+	public float[] getBatchDer() {return batchDer;}
+	public int getBatchSize() {return batchSize;}
 	public int getNeurons() {return neurons;}
 	public int getInputShape() {return inputShape;}
 	public Sequential.ACTIVATION getLabel() { return actLabel;}
 	public ActivationFunction getActivation() {return activation;}
 	public boolean isReady() {return ready;}
+	public boolean isPruned() {return mask != null;}
+	public Sequential.PRECISION getPrecision() {return precision != null ? precision : Sequential.PRECISION.FP32;}
+	short[] getStored() {return stored;}
+	float[] getLogVal() {return logVal;}
+	float[] getBatchLogVal() {return batchLogVal;}
+	boolean isDerived() {return derived;}
+	boolean isBatchDerived() {return batchDerived;}
+	boolean[] getMask() {return mask;}
+	void setMask(boolean[] mask) {this.mask = mask; applyMask(); narrow();}
 	public Dense getReady() {ready = true; return this;}
 }
@@ -1,6 +1,7 @@
 package deepLearning.utilities;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 import tensors.Float.*;
 
@@ -25,6 +26,18 @@ public class Filter implements Serializable {
 		this.shape = shape;
 	}
 	
+	//Copies out of a packed (channel x row x col) block starting at offset
+	public Filter(int[] shape, float[] packed, int offset) {
+		
+		int layerSize = shape[0] * shape[1];
+		
+		layers = new Matrix[shape[2]];
+		for (int i = 0; i < layers.length; i++)
+			layers[i] = new Matrix(Arrays.copyOfRange(packed, offset + i * layerSize, offset + (i + 1) * layerSize), shape[0], shape[1]);
+		
+		this.shape = shape;
+	}
+	
 	public Filter(Filter copied) {
 		shape = copied.getShape();
 		
@@ -59,6 +72,13 @@ public class Filter implements Serializable {
 		return this;
 	}
 	
+	void pack(float[] packed, int offset) {
+		
+		int layerSize = shape[0] * shape[1];
+		for (int i = 0; i < layers.length; i++)
+			System.arraycopy(layers[i].flatten().get(), 0, packed, offset + i * layerSize, layerSize);
+	}
+	
 	public Filter randomize(float deviation) {for (Matrix mat : layers) mat.randomize(deviation); return this;}
 	public Filter copy() {return new Filter(this);}
 	public int[] getShape(){return shape;}
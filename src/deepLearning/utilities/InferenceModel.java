@@ -0,0 +1,362 @@
+package deepLearning.utilities;
+
+import java.nio.FloatBuffer;
+
+import tensors.Float.*;
+
+public class InferenceModel {
+	
+	//Pruned dense layers at or below this fraction of non zero weights run as a sparse matvec
+	static final float SPARSE_DENSITY = 0.4f;
+	
+	public class Scratch {
+		
+		private final float[] input, columns, widened;
+		private final float[][] convRaw, convPooled, denseOut;
+		
+		//Sized for one sample up front and grown to the largest batch seen
+		private float[] flat;
+		
+		//Only allocated by QuantizedModel
+		byte[] quantized;
+		int[] accumulators;
+		
+		private Scratch() {
+			
+			input = new float[inputSize];
+			
+			convRaw = new float[convCount][];
+			convPooled = new float[convCount][];
+			
+			int maxColumns = 0;
+			for (int i = 0; i < convCount; i++) {
+				int patchSize = filterShapes[i][0] * filterShapes[i][1] * filterShapes[i][2];
+				maxColumns = Math.max(maxColumns, patchSize * convOutShapes[i][0] * convOutShapes[i][1]);
+				
+				convRaw[i] = new float[convOutShapes[i][0] * convOutShapes[i][1] * convOutShapes[i][2]];
+				convPooled[i] = pools[i] == Conv2D.POOLING.NONE ? convRaw[i] : new float[convPooledShapes[i][0] * convPooledShapes[i][1] * convPooledShapes[i][2]];
+			}
+			
+			denseOut = new float[denseCount][];
+			for (int i = 0; i < denseCount; i++)
+				denseOut[i] = new float[neurons[i]];
+			
+			flat = convCount > 0 ? new float[convPooled[convCount - 1].length] : null;
+			columns = new float[maxColumns];
+			
+			int maxWidened = 0;
+			for (int i = 0; i < denseCount; i++)
+				if (halfWeights[i] != null || mappedWeights[i] != null)
+					maxWidened = Math.max(maxWidened, denseInputs[i]);
+			widened = maxWidened > 0 ? new float[maxWidened] : null;
+		}
+	}
+	
+	private final boolean horizontal;
+	private final int inputSize, outputSize;
+	
+	private final int convCount;
+	private final int[][] convInShapes, convOutShapes, convPooledShapes, filterShapes;
+	private final int[] padRows, padCols, poolRows, poolCols, poolStrides;
+	private final Conv2D.POOLING[] pools;
+	private final float[][] filters;
+	private final ActivationFunction[] convActivations;
+	
+	private final int denseCount;
+	private final int[] neurons, denseInputs;
+	private final float[][] weights, bias;
+	private final CsrMatrix[] sparse;
+	
+	//Dense layers trained in half precision keep only their 16 bit weights, widened a row at a time
+	private final short[][] halfWeights;
+	
+	//Read-only views into a mapped model file, see Sequential.mapModel. Null for layers that hold their own copy
+	private final FloatBuffer[] mappedFilters, mappedWeights;
+	private final Sequential.PRECISION[] precisions;
+	private final ActivationFunction[] denseActivations;
+	
+	private final ThreadLocal<Scratch> scratch;
+	
+	private volatile Metrics metrics;
+	
+	public InferenceModel(Sequential model) {
+		
+		this(model, true);
+	}
+	
+	//Subclasses that keep their own copy of the parameters can skip the float one
+	InferenceModel(Sequential model, boolean copyParameters) {
+		
+		this(model, copyParameters, null, null);
+	}
+	
+	InferenceModel(Sequential model, FloatBuffer[] mappedFilters, FloatBuffer[] mappedWeights) {
+		
+		this(model, true, mappedFilters, mappedWeights);
+	}
+	
+	private InferenceModel(Sequential model, boolean copyParameters, FloatBuffer[] mappedFilters, FloatBuffer[] mappedWeights) {
+		
+		if (model.isEmpty())
+			throw new RuntimeException("Cannot compile an empty model");
+		
+		horizontal = model.isHorizontal();
+		
+		convCount = model.getConvCount();
+		convInShapes = new int[convCount][];
+		convOutShapes = new int[convCount][];
+		convPooledShapes = new int[convCount][];
+		filterShapes = new int[convCount][];
+		padRows = new int[convCount];
+		padCols = new int[convCount];
+		poolRows = new int[convCount];
+		poolCols = new int[convCount];
+		poolStrides = new int[convCount];
+		pools = new Conv2D.POOLING[convCount];
+		filters = new float[convCount][];
+		this.mappedFilters = mappedFilters != null ? mappedFilters : new FloatBuffer[convCount];
+		convActivations = new ActivationFunction[convCount];
+		
+		for (int i = 0; i < convCount; i++) {
+			Conv2D conv = model.getConv().get(i);
+			
+			convInShapes[i] = conv.getInputShape().clone();
+			convOutShapes[i] = conv.getOutputShape().clone();
+			convPooledShapes[i] = conv.getPooledOutShape().clone();
+			filterShapes[i] = conv.getFilterShape().clone();
+			
+			if (conv.getPad() == Conv2D.PADDING.ORIGINAL) {
+				padRows[i] = conv.getPadLayers()[0];
+				padCols[i] = conv.getPadLayers()[1];
+			}
+			
+			pools[i] = conv.getPool();
+			poolRows[i] = conv.getPoolRows();
+			poolCols[i] = conv.getPoolCols();
+			poolStrides[i] = conv.getPoolStride();
+			convActivations[i] = new ActivationFunction(conv.getLabel());
+			
+			boolean copy = copyParameters && this.mappedFilters[i] == null;
+			if (copy && conv.getStored() != null) {
+				filters[i] = new float[conv.getStored().length];
+				Kernels.widen(conv.getStored(), 0, filters[i], filters[i].length, conv.getPrecision());
+			} else if (copy)
+				filters[i] = conv.getRawFilters().clone();
+		}
+		
+		denseCount = model.getDenseCount();
+		neurons = new int[denseCount];
+		denseInputs = new int[denseCount];
+		weights = new float[denseCount][];
+		bias = new float[denseCount][];
+		sparse = new CsrMatrix[denseCount];
+		halfWeights = new short[denseCount][];
+		this.mappedWeights = mappedWeights != null ? mappedWeights : new FloatBuffer[denseCount];
+		precisions = new Sequential.PRECISION[denseCount];
+		denseActivations = new ActivationFunction[denseCount];
+		
+		for (int i = 0; i < denseCount; i++) {
+			Dense dense = model.getDense().get(i);
+			
+			neurons[i] = dense.getNeurons();
+			denseInputs[i] = dense.getInputShape();
+			precisions[i] = dense.getPrecision();
+			boolean copy = copyParameters && this.mappedWeights[i] == null;
+			if (copy && dense.isPruned() && 1.0f - dense.getSparsity() <= SPARSE_DENSITY)
+				sparse[i] = new CsrMatrix(widenWeights(dense), dense.getNeurons(), dense.getInputShape());
+			else if (copy && dense.getStored() != null)
+				halfWeights[i] = dense.getStored().clone();
+			else if (copy)
+				weights[i] = dense.getRawWeights().clone();
+			bias[i] = dense.getRawBias().clone();
+			denseActivations[i] = new ActivationFunction(dense.getLabel());
+		}
+		
+		if (model.hasConv())
+			inputSize = model.getFirstConv().getInputSize();
+		else
+			inputSize = model.getFirstDense().getInputShape();
+		
+		if (model.hasDense())
+			outputSize = model.getLastDense().getNeurons();
+		else
+			outputSize = model.getLastConv().getPooledOutSize();
+		
+		scratch = ThreadLocal.withInitial(this::newScratch);
+	}
+	
+	//The values the layer actually computes with, which are the rounded ones when it is stored in half precision
+	private static float[] widenWeights(Dense dense) {
+		
+		if (dense.getStored() == null)
+			return dense.getRawWeights();
+		
+		float[] widened = new float[dense.getStored().length];
+		Kernels.widen(dense.getStored(), 0, widened, widened.length, dense.getPrecision());
+		return widened;
+	}
+	
+	public Vector predict(Vector input) {
+		
+		return new Vector(predict(input.get(), new float[getOutputSize()]));
+	}
+	
+	public float[] predict(float[] input, float[] output) {
+		
+		return predict(input, output, scratch.get());
+	}
+	
+	public float[] predict(float[] input, float[] output, Scratch scratch) {
+		
+		if (input.length < getInputSize())
+			throw new RuntimeException("Input dimensions mismatch with the network input shape");
+		
+		if (output.length < getOutputSize())
+			throw new RuntimeException("Output buffer is smaller than the network output shape");
+		
+		return predict(input, output, 1, scratch);
+	}
+	
+	public float[] predict(float[] inputs, float[] outputs, int batchSize) {
+		
+		return predict(inputs, outputs, batchSize, scratch.get());
+	}
+	
+	//One sample per row of inputs and outputs. Convolutions still run a sample at a time, every dense layer is a single
+	//GEMM over the whole batch so its weights are read once instead of once per sample
+	public float[] predict(float[] inputs, float[] outputs, int batchSize, Scratch scratch) {
+		
+		if (batchSize < 1)
+			throw new RuntimeException("Batch size must be greater than 0");
+		
+		if (inputs.length < batchSize * getInputSize())
+			throw new RuntimeException("Input dimensions mismatch with the network input shape");
+		
+		if (outputs.length < batchSize * getOutputSize())
+			throw new RuntimeException("Output buffer is smaller than the network output shape");
+		
+		Metrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		
+		float[] current = inputs;
+		if (convCount > 0) {
+			
+			int[] shape = convInShapes[0];
+			int[] outShape = convPooledShapes[convCount - 1];
+			int flatSize = outShape[0] * outShape[1] * outShape[2];
+			
+			float[] flat = outputs;
+			if (denseCount > 0)
+				flat = scratch.flat = Kernels.ensure(scratch.flat, batchSize * flatSize);
+			
+			for (int b = 0; b < batchSize; b++) {
+				if (horizontal)
+					Kernels.toPlanar(inputs, b * getInputSize(), scratch.input, shape[0], shape[1], shape[2]);
+				else
+					System.arraycopy(inputs, b * getInputSize(), scratch.input, 0, getInputSize());
+				
+				float[] maps = scratch.input;
+				for (int i = 0; i < convCount; i++) {
+					maps = convolve(i, maps, scratch);
+					if (metrics != null)
+						start = record(metrics, i, start);
+				}
+				
+				if (horizontal)
+					Kernels.fromPlanar(maps, flat, b * flatSize, outShape[0], outShape[1], outShape[2]);
+				else
+					System.arraycopy(maps, 0, flat, b * flatSize, flatSize);
+			}
+			current = flat;
+		}
+		
+		for (int i = 0; i < denseCount; i++) {
+			float[] out = outputs;
+			if (i < denseCount - 1)
+				out = scratch.denseOut[i] = Kernels.ensure(scratch.denseOut[i], batchSize * neurons[i]);
+			
+			multDense(i, current, out, batchSize, scratch);
+			for (int r = 0; r < batchSize; r++)
+				denseActivations[i].compute(out, bias[i], out, null, r * neurons[i], neurons[i]);
+			
+			current = out;
+			if (metrics != null)
+				start = record(metrics, convCount + i, start);
+		}
+		
+		return outputs;
+	}
+	
+	private static long record(Metrics metrics, int layer, long start) {
+		
+		long now = System.nanoTime();
+		metrics.forward(layer, now - start);
+		return now;
+	}
+	
+	private float[] convolve(int layer, float[] input, Scratch scratch) {
+		
+		int[] inShape = convInShapes[layer];
+		int[] filterShape = filterShapes[layer];
+		int[] outShape = convOutShapes[layer];
+		
+		int mapSize = outShape[0] * outShape[1];
+		int patchSize = filterShape[0] * filterShape[1] * filterShape[2];
+		
+		Kernels.im2col(input, inShape[2], inShape[0], inShape[1], filterShape[0], filterShape[1],
+				padRows[layer], padCols[layer], outShape[0], outShape[1], scratch.columns);
+		
+		float[] raw = scratch.convRaw[layer];
+		multConv(layer, scratch.columns, raw, patchSize, mapSize, scratch);
+		
+		for (int f = 0; f < outShape[2]; f++)
+			convActivations[layer].compute(raw, raw, null, f * mapSize, mapSize);
+		
+		if (pools[layer] == Conv2D.POOLING.NONE)
+			return raw;
+		
+		int[] pooledShape = convPooledShapes[layer];
+		float[] pooled = scratch.convPooled[layer];
+		
+		Kernels.pool(raw, outShape[2], outShape[0], outShape[1], poolRows[layer], poolCols[layer], poolStrides[layer],
+				pooledShape[0], pooledShape[1], pools[layer] == Conv2D.POOLING.MAX, pooled, null);
+		
+		return pooled;
+	}
+	
+	//out(rows x neurons) = input(rows x inputs) * weights^T for dense layer i, before bias and activation
+	void multDense(int layer, float[] input, float[] out, int rows, Scratch scratch) {
+		
+		if (sparse[layer] != null)
+			for (int r = 0; r < rows; r++)
+				sparse[layer].mult(input, r * denseInputs[layer], out, r * neurons[layer]);
+		else if (mappedWeights[layer] != null)
+			Kernels.multTransB(input, mappedWeights[layer], out, rows, denseInputs[layer], neurons[layer], scratch.widened);
+		else if (halfWeights[layer] != null)
+			Kernels.multTransB(input, halfWeights[layer], out, rows, denseInputs[layer], neurons[layer], precisions[layer], scratch.widened);
+		else
+			Kernels.multTransB(input, weights[layer], out, rows, denseInputs[layer], neurons[layer]);
+	}
+	
+	//raw (filters x mapSize) = filters * columns (patchSize x mapSize) for conv layer i
+	void multConv(int layer, float[] columns, float[] raw, int patchSize, int mapSize, Scratch scratch) {
+		
+		if (mappedFilters[layer] != null)
+			Kernels.mult(mappedFilters[layer], columns, raw, convOutShapes[layer][2], patchSize, mapSize);
+		else
+			Kernels.mult(filters[layer], columns, raw, convOutShapes[layer][2], patchSize, mapSize);
+	}
+	
+	//Per-layer forward timings of every predict call, null turns the recording off again
+	public InferenceModel metrics(Metrics metrics) {
+		
+		if (metrics != null)
+			metrics.bind(convCount, denseCount);
+		this.metrics = metrics;
+		return this;
+	}
+	
+	public Scratch newScratch() {return new Scratch();}
+	public int getInputSize() {return inputSize;}
+	public int getOutputSize() {return outputSize;}
+}
@@ -0,0 +1,76 @@
+package deepLearning.utilities;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+//Publishes the last exported snapshot as an MBean under deepLearning.utilities:type=Metrics,name=<name>, readable
+//from jconsole or any JMX client while the process runs
+public class JmxExporter implements Metrics.Exporter, JmxExporterMBean {
+	
+	private final ObjectName objectName;
+	private volatile Metrics.Snapshot last;
+	
+	public JmxExporter(String name) {
+		
+		try {
+			objectName = new ObjectName("deepLearning.utilities:type=Metrics,name=" + ObjectName.quote(name));
+			
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	@Override
+	public void export(Metrics.Snapshot snapshot) {
+		
+		last = snapshot;
+	}
+	
+	public void close() {
+		
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private float[] means(boolean forward) {
+		
+		Metrics.Snapshot snapshot = last;
+		if (snapshot == null)
+			return new float[0];
+		
+		float[] result = new float[snapshot.getLayers().length];
+		for (int i = 0; i < result.length; i++)
+			result[i] = forward ? snapshot.getMeanForwardNanos(i) : snapshot.getMeanBackwardNanos(i);
+		return result;
+	}
+	
+	public ObjectName getObjectName() {return objectName;}
+	
+	@Override public int getEpoch() {return last != null ? last.getEpoch() : 0;}
+	@Override public int getIteration() {return last != null ? last.getIteration() : 0;}
+	@Override public long getSamples() {return last != null ? last.getSamples() : 0;}
+	@Override public float getSamplesPerSecond() {return last != null ? last.getSamplesPerSecond() : 0.0f;}
+	@Override public long getAllocatedBytes() {return last != null ? last.getAllocatedBytes() : 0;}
+	@Override public float getTrainLoss() {return last != null ? last.getTrainLoss() : Float.NaN;}
+	@Override public float getValLoss() {return last != null ? last.getValLoss() : Float.NaN;}
+	@Override public String[] getLayers() {return last != null ? last.getLayers() : new String[0];}
+	@Override public long[] getForwardNanos() {return last != null ? last.getForwardNanos() : new long[0];}
+	@Override public long[] getBackwardNanos() {return last != null ? last.getBackwardNanos() : new long[0];}
+	@Override public float[] getMeanForwardNanos() {return means(true);}
+	@Override public float[] getMeanBackwardNanos() {return means(false);}
+	@Override public float[] getGradientNorms() {return last != null ? last.getGradientNorms() : new float[0];}
+	@Override public long[] getLossCounts() {return last != null ? last.getLossCounts() : new long[0];}
+	@Override public long[] getAccuracyCounts() {return last != null ? last.getAccuracyCounts() : new long[0];}
+	@Override public double getMeanLoss() {return last != null ? last.getMeanLoss() : Double.NaN;}
+	@Override public double getMeanAccuracy() {return last != null ? last.getMeanAccuracy() : Double.NaN;}
+}
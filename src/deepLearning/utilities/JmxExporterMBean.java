@@ -0,0 +1,25 @@
+package deepLearning.utilities;
+
+//Attributes JmxExporter publishes, per-layer arrays are in the order of getLayers()
+public interface JmxExporterMBean {
+	
+	int getEpoch();
+	int getIteration();
+	long getSamples();
+	float getSamplesPerSecond();
+	long getAllocatedBytes();
+	float getTrainLoss();
+	float getValLoss();
+	
+	String[] getLayers();
+	long[] getForwardNanos();
+	long[] getBackwardNanos();
+	float[] getMeanForwardNanos();
+	float[] getMeanBackwardNanos();
+	float[] getGradientNorms();
+	
+	long[] getLossCounts();
+	long[] getAccuracyCounts();
+	double getMeanLoss();
+	double getMeanAccuracy();
+}
@@ -0,0 +1,89 @@
+package deepLearning.utilities;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+//Appends one JSON object per snapshot, a whole line at a time so the file can be tailed while training runs
+public class JsonLinesExporter implements Metrics.Exporter {
+	
+	private final String path;
+	
+	public JsonLinesExporter(String path) {
+		
+		this.path = path;
+	}
+	
+	@Override
+	public synchronized void export(Metrics.Snapshot snapshot) {
+		
+		StringBuilder line = new StringBuilder(512);
+		
+		line.append("{\"time\":").append(System.currentTimeMillis());
+		line.append(",\"epoch\":").append(snapshot.getEpoch());
+		line.append(",\"iteration\":").append(snapshot.getIteration());
+		line.append(",\"elapsedNanos\":").append(snapshot.getElapsedNanos());
+		line.append(",\"samples\":").append(snapshot.getSamples());
+		line.append(",\"samplesPerSecond\":");
+		number(line, snapshot.getSamplesPerSecond());
+		line.append(",\"allocatedBytes\":").append(snapshot.getAllocatedBytes());
+		line.append(",\"trainLoss\":");
+		number(line, snapshot.getTrainLoss());
+		line.append(",\"valLoss\":");
+		number(line, snapshot.getValLoss());
+		
+		line.append(",\"layers\":[");
+		String[] layers = snapshot.getLayers();
+		float[] norms = snapshot.getGradientNorms();
+		for (int i = 0; i < layers.length; i++) {
+			if (i > 0)
+				line.append(',');
+			
+			line.append("{\"name\":\"").append(layers[i]).append('"');
+			line.append(",\"forwardNanos\":").append(snapshot.getForwardNanos()[i]);
+			line.append(",\"forwardCalls\":").append(snapshot.getForwardCalls()[i]);
+			line.append(",\"backwardNanos\":").append(snapshot.getBackwardNanos()[i]);
+			line.append(",\"backwardCalls\":").append(snapshot.getBackwardCalls()[i]);
+			line.append(",\"gradientNorm\":");
+			number(line, norms[i]);
+			line.append('}');
+		}
+		line.append(']');
+		
+		line.append(",\"loss\":");
+		histogram(line, snapshot.getLossBounds(), snapshot.getLossCounts(), snapshot.getMeanLoss());
+		line.append(",\"accuracy\":");
+		histogram(line, snapshot.getAccuracyBounds(), snapshot.getAccuracyCounts(), snapshot.getMeanAccuracy());
+		line.append("}\n");
+		
+		try (Writer writer = new FileWriter(path, true)) {
+			writer.write(line.toString());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static void histogram(StringBuilder line, float[] bounds, long[] counts, double mean) {
+		
+		line.append("{\"bounds\":[");
+		for (int i = 0; i < bounds.length; i++)
+			number(line.append(i > 0 ? "," : ""), bounds[i]);
+		
+		line.append("],\"counts\":[");
+		for (int i = 0; i < counts.length; i++)
+			line.append(i > 0 ? "," : "").append(counts[i]);
+		
+		line.append("],\"mean\":");
+		number(line, mean);
+		line.append('}');
+	}
+	
+	//JSON has no NaN or infinity, a missing value is written as null
+	private static void number(StringBuilder line, double value) {
+		
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			line.append("null");
+		else
+			line.append((float) value);
+	}
+}
@@ -0,0 +1,496 @@
+package deepLearning.utilities;
+
+import java.nio.FloatBuffer;
+
+final class Kernels {
+	
+	private Kernels() {}
+	
+	//C(m x n) = A(m x k) * B(k x n), all row major
+	static void mult(float[] a, float[] b, float[] c, int m, int k, int n) {
+		
+		for (int i = 0; i < m; i++) {
+			int cRow = i * n;
+			for (int j = 0; j < n; j++)
+				c[cRow + j] = 0.0f;
+			
+			for (int p = 0; p < k; p++) {
+				float aip = a[i * k + p];
+				if (aip == 0.0f)
+					continue;
+				
+				axpy(aip, b, p * n, c, cRow, n);
+			}
+		}
+	}
+	
+	//C(m x n) (+)= A(k x m)^T * B(k x n)
+	static void multTransA(float[] a, float[] b, float[] c, int m, int k, int n, boolean accumulate) {
+		
+		if (!accumulate)
+			for (int i = 0; i < m * n; i++)
+				c[i] = 0.0f;
+		
+		for (int p = 0; p < k; p++) {
+			int aRow = p * m;
+			int bRow = p * n;
+			for (int i = 0; i < m; i++) {
+				float api = a[aRow + i];
+				if (api == 0.0f)
+					continue;
+				
+				axpy(api, b, bRow, c, i * n, n);
+			}
+		}
+	}
+	
+	//C(m x n) (+)= A(m x k) * B(n x k)^T
+	static void multTransB(float[] a, float[] b, float[] c, int m, int k, int n) {
+		
+		multTransB(a, b, c, m, k, n, false);
+	}
+	
+	static void multTransB(float[] a, float[] b, float[] c, int m, int k, int n, boolean accumulate) {
+		
+		for (int i = 0; i < m; i++) {
+			int aRow = i * k;
+			for (int j = 0; j < n; j++) {
+				float sum = dot(a, aRow, b, j * k, k);
+				
+				if (accumulate)
+					c[i * n + j] += sum;
+				else
+					c[i * n + j] = sum;
+			}
+		}
+	}
+	
+	//y += alpha * x. A plain counted loop with no branches, which HotSpot's superword pass turns into packed multiply-adds
+	static void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int length) {
+		
+		for (int i = 0; i < length; i++)
+			y[yOff + i] += alpha * x[xOff + i];
+	}
+	
+	//The JIT will not reorder a float reduction, so the sum is split over eight independent accumulators instead of
+	//one serial chain. The lanes are combined pairwise at the end
+	static float dot(float[] a, int aOff, float[] b, int bOff, int length) {
+		
+		float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f, s4 = 0.0f, s5 = 0.0f, s6 = 0.0f, s7 = 0.0f;
+		
+		int i = 0;
+		for (; i <= length - 8; i += 8) {
+			s0 += a[aOff + i] * b[bOff + i];
+			s1 += a[aOff + i + 1] * b[bOff + i + 1];
+			s2 += a[aOff + i + 2] * b[bOff + i + 2];
+			s3 += a[aOff + i + 3] * b[bOff + i + 3];
+			s4 += a[aOff + i + 4] * b[bOff + i + 4];
+			s5 += a[aOff + i + 5] * b[bOff + i + 5];
+			s6 += a[aOff + i + 6] * b[bOff + i + 6];
+			s7 += a[aOff + i + 7] * b[bOff + i + 7];
+		}
+		
+		float sum = ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+		for (; i < length; i++)
+			sum += a[aOff + i] * b[bOff + i];
+		return sum;
+	}
+	
+	static float squaredDistance(float[] a, float[] b, int offset, int length) {
+		
+		float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+		
+		int i = offset, end = offset + length;
+		for (; i <= end - 4; i += 4) {
+			float d0 = a[i] - b[i], d1 = a[i + 1] - b[i + 1], d2 = a[i + 2] - b[i + 2], d3 = a[i + 3] - b[i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+		}
+		
+		float sum = (s0 + s1) + (s2 + s3);
+		for (; i < end; i++)
+			sum += (a[i] - b[i]) * (a[i] - b[i]);
+		return sum;
+	}
+	
+	//Unfolds a planar (channels x rows x cols) volume so that every column holds one receptive field
+	static void im2col(float[] volume, int channels, int rows, int cols, int kRows, int kCols, int padRows, int padCols, int outRows, int outCols, float[] columns) {
+		
+		int outSize = outRows * outCols;
+		for (int c = 0; c < channels; c++)
+			for (int ky = 0; ky < kRows; ky++)
+				for (int kx = 0; kx < kCols; kx++) {
+					int row = ((c * kRows + ky) * kCols + kx) * outSize;
+					
+					for (int y = 0; y < outRows; y++) {
+						int sy = y + ky - padRows;
+						int dst = row + y * outCols;
+						
+						if (sy < 0 || sy >= rows) {
+							for (int x = 0; x < outCols; x++)
+								columns[dst + x] = 0.0f;
+							continue;
+						}
+						
+						int src = (c * rows + sy) * cols;
+						for (int x = 0; x < outCols; x++) {
+							int sx = x + kx - padCols;
+							columns[dst + x] = sx >= 0 && sx < cols ? volume[src + sx] : 0.0f;
+						}
+					}
+				}
+	}
+	
+	//Inverse of im2col: scatters and adds every receptive field back into the (unpadded) volume
+	static void col2im(float[] columns, int channels, int rows, int cols, int kRows, int kCols, int padRows, int padCols, int outRows, int outCols, float[] volume) {
+		
+		for (int i = 0; i < channels * rows * cols; i++)
+			volume[i] = 0.0f;
+		
+		int outSize = outRows * outCols;
+		for (int c = 0; c < channels; c++)
+			for (int ky = 0; ky < kRows; ky++)
+				for (int kx = 0; kx < kCols; kx++) {
+					int row = ((c * kRows + ky) * kCols + kx) * outSize;
+					
+					for (int y = 0; y < outRows; y++) {
+						int sy = y + ky - padRows;
+						if (sy < 0 || sy >= rows)
+							continue;
+						
+						int src = row + y * outCols;
+						int dst = (c * rows + sy) * cols;
+						for (int x = 0; x < outCols; x++) {
+							int sx = x + kx - padCols;
+							if (sx >= 0 && sx < cols)
+								volume[dst + sx] += columns[src + x];
+						}
+					}
+				}
+	}
+	
+	//Converts between the horizontal flattening of a volume (row y holds row y of every channel) and planar channel-major order
+	static void toPlanar(float[] interleaved, float[] planar, int rows, int cols, int channels) {
+		
+		toPlanar(interleaved, 0, planar, rows, cols, channels);
+	}
+	
+	static void toPlanar(float[] interleaved, int offset, float[] planar, int rows, int cols, int channels) {
+		
+		for (int y = 0; y < rows; y++)
+			for (int c = 0; c < channels; c++)
+				System.arraycopy(interleaved, offset + (y * channels + c) * cols, planar, (c * rows + y) * cols, cols);
+	}
+	
+	static void fromPlanar(float[] planar, float[] interleaved, int rows, int cols, int channels) {
+		
+		fromPlanar(planar, interleaved, 0, rows, cols, channels);
+	}
+	
+	static void fromPlanar(float[] planar, float[] interleaved, int offset, int rows, int cols, int channels) {
+		
+		for (int y = 0; y < rows; y++)
+			for (int c = 0; c < channels; c++)
+				System.arraycopy(planar, (c * rows + y) * cols, interleaved, offset + (y * channels + c) * cols, cols);
+	}
+	
+	//Pools planar (channels x rows x cols) maps with a windowRows x windowCols window moved by stride. MAX records the
+	//index of every winner into argmax (when given), so unPool can route the error back without searching the window again
+	static void pool(float[] maps, int channels, int rows, int cols, int windowRows, int windowCols, int stride,
+			int pooledRows, int pooledCols, boolean max, float[] pooled, int[] argmax) {
+		
+		float scale = 1.0f / (windowRows * windowCols);
+		
+		for (int c = 0; c < channels; c++)
+			for (int y = 0; y < pooledRows; y++)
+				for (int x = 0; x < pooledCols; x++) {
+					int corner = (c * rows + y * stride) * cols + x * stride;
+					int cell = (c * pooledRows + y) * pooledCols + x;
+					
+					if (max) {
+						int best = corner;
+						for (int wy = 0; wy < windowRows; wy++)
+							for (int wx = 0; wx < windowCols; wx++) {
+								int index = corner + wy * cols + wx;
+								if (maps[index] > maps[best])
+									best = index;
+							}
+						
+						pooled[cell] = maps[best];
+						if (argmax != null)
+							argmax[cell] = best;
+					} else {
+						float sum = 0.0f;
+						for (int wy = 0; wy < windowRows; wy++)
+							for (int wx = 0; wx < windowCols; wx++)
+								sum += maps[corner + wy * cols + wx];
+						pooled[cell] = sum * scale;
+					}
+				}
+	}
+	
+	//Routes the pooled error back to the maps, overlapping windows accumulate
+	static void unPool(float[] pooledErr, int channels, int rows, int cols, int windowRows, int windowCols, int stride,
+			int pooledRows, int pooledCols, boolean max, int[] argmax, float[] err) {
+		
+		for (int i = 0; i < channels * rows * cols; i++)
+			err[i] = 0.0f;
+		
+		int cells = channels * pooledRows * pooledCols;
+		if (max) {
+			for (int cell = 0; cell < cells; cell++)
+				err[argmax[cell]] += pooledErr[cell];
+			return;
+		}
+		
+		float scale = 1.0f / (windowRows * windowCols);
+		for (int c = 0; c < channels; c++)
+			for (int y = 0; y < pooledRows; y++)
+				for (int x = 0; x < pooledCols; x++) {
+					int corner = (c * rows + y * stride) * cols + x * stride;
+					float share = pooledErr[(c * pooledRows + y) * pooledCols + x] * scale;
+					
+					for (int wy = 0; wy < windowRows; wy++)
+						for (int wx = 0; wx < windowCols; wx++)
+							err[corner + wy * cols + wx] += share;
+				}
+	}
+	
+	static void sumRows(float[] mat, float[] result, int rows, int cols) {
+		
+		for (int i = 0; i < rows; i++) {
+			int offset = i * cols;
+			for (int j = 0; j < cols; j++)
+				result[j] += mat[offset + j];
+		}
+	}
+	
+	static void multElementWise(float[] a, float[] b, int length) {
+		
+		for (int i = 0; i < length; i++)
+			a[i] *= b[i];
+	}
+	
+	//Symmetric int8 quantization of every row of w (rows x cols) with its own scale, w ~ q * scales[row]
+	static void quantizeRows(float[] w, int rows, int cols, byte[] q, float[] scales) {
+		
+		for (int i = 0; i < rows; i++) {
+			int offset = i * cols;
+			
+			float max = 0.0f;
+			for (int j = 0; j < cols; j++)
+				max = Math.max(max, Math.abs(w[offset + j]));
+			
+			scales[i] = max > 0.0f ? max / 127.0f : 1.0f;
+			quantize(w, offset, cols, 1.0f / scales[i], q, offset);
+		}
+	}
+	
+	static void quantize(float[] src, int srcOff, int length, float inverseScale, byte[] dst, int dstOff) {
+		
+		for (int i = 0; i < length; i++) {
+			int value = Math.round(src[srcOff + i] * inverseScale);
+			dst[dstOff + i] = (byte) Math.max(-127, Math.min(127, value));
+		}
+	}
+	
+	//C(m x n) = A(m x k) * B(k x n) over int8 with int32 accumulation, row major like mult
+	static void mult(byte[] a, byte[] b, int[] c, int m, int k, int n) {
+		
+		for (int i = 0; i < m; i++) {
+			int cRow = i * n;
+			for (int j = 0; j < n; j++)
+				c[cRow + j] = 0;
+			
+			for (int p = 0; p < k; p++) {
+				int aip = a[i * k + p];
+				if (aip == 0)
+					continue;
+				
+				int bRow = p * n;
+				for (int j = 0; j < n; j++)
+					c[cRow + j] += aip * b[bRow + j];
+			}
+		}
+	}
+	
+	//Round to nearest even. bf16 is the top half of a float, fp16 re-biases the exponent and saturates to infinity above 65504
+	static short narrow(float value, Sequential.PRECISION precision) {
+		
+		int bits = Float.floatToRawIntBits(value);
+		if (precision == Sequential.PRECISION.BF16) {
+			if ((bits & 0x7fffffff) > 0x7f800000)
+				return (short) ((bits >>> 16) | 0x40);
+			return (short) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+		}
+		
+		int sign = (bits >>> 16) & 0x8000;
+		int abs = bits & 0x7fffffff;
+		
+		if (abs >= 0x7f800000)
+			return (short) (sign | (abs > 0x7f800000 ? 0x7e00 : 0x7c00));
+		if (abs >= 0x477ff000)
+			return (short) (sign | 0x7c00);
+		
+		//Below the smallest normal fp16 the mantissa is the value in units of 2^-24
+		if (abs < 0x38800000)
+			return (short) (sign | (int) Math.rint(Float.intBitsToFloat(abs) * 0x1p24f));
+		
+		return (short) (sign | ((abs + 0xfff + ((abs >>> 13) & 1) - 0x38000000) >>> 13));
+	}
+	
+	//Exact, every half value is representable as a float. fp16 subnormals come out right from scaling the shifted bits
+	static float widen(short value, Sequential.PRECISION precision) {
+		
+		if (precision == Sequential.PRECISION.BF16)
+			return Float.intBitsToFloat(value << 16);
+		
+		int sign = (value & 0x8000) << 16;
+		int abs = value & 0x7fff;
+		
+		if (abs >= 0x7c00)
+			return Float.intBitsToFloat(sign | 0x7f800000 | (abs & 0x3ff) << 13);
+		return Float.intBitsToFloat(sign | Float.floatToRawIntBits(Float.intBitsToFloat(abs << 13) * 0x1p112f));
+	}
+	
+	static void narrow(float[] src, short[] dst, int length, Sequential.PRECISION precision) {
+		
+		for (int i = 0; i < length; i++)
+			dst[i] = narrow(src[i], precision);
+	}
+	
+	//fp16 goes through a table of all 65536 values, the branch for infinities otherwise keeps the loop scalar and slow
+	private static final class Fp16 {
+		
+		static final float[] TABLE = new float[1 << 16];
+		static {
+			for (int i = 0; i < TABLE.length; i++)
+				TABLE[i] = widen((short) i, Sequential.PRECISION.FP16);
+		}
+	}
+	
+	static void widen(short[] src, int srcOff, float[] dst, int length, Sequential.PRECISION precision) {
+		
+		if (precision == Sequential.PRECISION.BF16) {
+			for (int i = 0; i < length; i++)
+				dst[i] = Float.intBitsToFloat(src[srcOff + i] << 16);
+			return;
+		}
+		
+		float[] table = Fp16.TABLE;
+		for (int i = 0; i < length; i++)
+			dst[i] = table[src[srcOff + i] & 0xffff];
+	}
+	
+	//Same lanes as dot, with b widened from bf16 inside the loop instead of through a buffer
+	static float dot(float[] a, int aOff, short[] b, int bOff, int length) {
+		
+		float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f, s4 = 0.0f, s5 = 0.0f, s6 = 0.0f, s7 = 0.0f;
+		
+		int i = 0;
+		for (; i <= length - 8; i += 8) {
+			s0 += a[aOff + i] * Float.intBitsToFloat(b[bOff + i] << 16);
+			s1 += a[aOff + i + 1] * Float.intBitsToFloat(b[bOff + i + 1] << 16);
+			s2 += a[aOff + i + 2] * Float.intBitsToFloat(b[bOff + i + 2] << 16);
+			s3 += a[aOff + i + 3] * Float.intBitsToFloat(b[bOff + i + 3] << 16);
+			s4 += a[aOff + i + 4] * Float.intBitsToFloat(b[bOff + i + 4] << 16);
+			s5 += a[aOff + i + 5] * Float.intBitsToFloat(b[bOff + i + 5] << 16);
+			s6 += a[aOff + i + 6] * Float.intBitsToFloat(b[bOff + i + 6] << 16);
+			s7 += a[aOff + i + 7] * Float.intBitsToFloat(b[bOff + i + 7] << 16);
+		}
+		
+		float sum = ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+		for (; i < length; i++)
+			sum += a[aOff + i] * Float.intBitsToFloat(b[bOff + i] << 16);
+		return sum;
+	}
+	
+	//C(m x n) = A(m x k) * B(n x k)^T with B held in half precision. Each row of B is widened once into row (k floats)
+	//and reused for every row of A, so B is streamed at half the bytes and the dot product stays in fp32. A single bf16
+	//row skips the buffer
+	static void multTransB(float[] a, short[] b, float[] c, int m, int k, int n, Sequential.PRECISION precision, float[] row) {
+		
+		if (m == 1 && precision == Sequential.PRECISION.BF16) {
+			for (int j = 0; j < n; j++)
+				c[j] = dot(a, 0, b, j * k, k);
+			return;
+		}
+		
+		for (int j = 0; j < n; j++) {
+			widen(b, j * k, row, k, precision);
+			for (int i = 0; i < m; i++)
+				c[i * n + j] = dot(a, i * k, row, 0, k);
+		}
+	}
+	
+	//C(m x n) = A(m x k) * B(k x n) with B in half precision, row (n floats) holds one widened row of B at a time
+	static void mult(float[] a, short[] b, float[] c, int m, int k, int n, Sequential.PRECISION precision, float[] row) {
+		
+		for (int i = 0; i < m * n; i++)
+			c[i] = 0.0f;
+		
+		for (int p = 0; p < k; p++) {
+			widen(b, p * n, row, n, precision);
+			for (int i = 0; i < m; i++) {
+				float aip = a[i * k + p];
+				if (aip == 0.0f)
+					continue;
+				
+				axpy(aip, row, 0, c, i * n, n);
+			}
+		}
+	}
+	
+	//C(m x n) = A(m x k) * B(n x k)^T with B read from a buffer, row (k floats) holds one row of B at a time. Only absolute
+	//gets, so threads can share the buffer
+	static void multTransB(float[] a, FloatBuffer b, float[] c, int m, int k, int n, float[] row) {
+		
+		for (int j = 0; j < n; j++) {
+			for (int p = 0; p < k; p++)
+				row[p] = b.get(j * k + p);
+			
+			for (int i = 0; i < m; i++)
+				c[i * n + j] = dot(a, i * k, row, 0, k);
+		}
+	}
+	
+	//C(m x n) = A(m x k) * B(k x n) with A read from a buffer
+	static void mult(FloatBuffer a, float[] b, float[] c, int m, int k, int n) {
+		
+		for (int i = 0; i < m * n; i++)
+			c[i] = 0.0f;
+		
+		for (int i = 0; i < m; i++) {
+			for (int p = 0; p < k; p++) {
+				float aip = a.get(i * k + p);
+				if (aip == 0.0f)
+					continue;
+				
+				axpy(aip, b, p * n, c, i * n, n);
+			}
+		}
+	}
+	
+	static float[] ensure(float[] buffer, int length) {
+		
+		if (buffer == null || buffer.length < length)
+			return new float[length];
+		return buffer;
+	}
+	
+	static int[] ensure(int[] buffer, int length) {
+		
+		if (buffer == null || buffer.length < length)
+			return new int[length];
+		return buffer;
+	}
+	
+	static byte[] ensure(byte[] buffer, int length) {
+		
+		if (buffer == null || buffer.length < length)
+			return new byte[length];
+		return buffer;
+	}
+}
@@ -0,0 +1,332 @@
+package deepLearning.utilities;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+//Counters cheap enough to leave on outside of a profiler. Layers are indexed like Sequential.remove(), convs first, and
+//every hot path recorder is a LongAdder so replicas training in parallel can share one registry
+public class Metrics {
+	
+	public interface Exporter {
+		
+		void export(Snapshot snapshot);
+	}
+	
+	public static class Histogram {
+		
+		//Bucket i counts values below bounds[i] and at or above bounds[i - 1], the last bucket everything above
+		private final float[] bounds;
+		private final LongAdder[] counts;
+		private final LongAdder count;
+		private final DoubleAdder sum;
+		
+		public Histogram(float... bounds) {
+			
+			for (int i = 1; i < bounds.length; i++)
+				if (bounds[i] <= bounds[i - 1])
+					throw new RuntimeException("Histogram bounds must be increasing");
+			
+			this.bounds = bounds.clone();
+			counts = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+			
+			count = new LongAdder();
+			sum = new DoubleAdder();
+		}
+		
+		public void record(float value) {
+			
+			int bucket = Arrays.binarySearch(bounds, value);
+			bucket = bucket >= 0 ? bucket + 1 : -bucket - 1;
+			
+			counts[bucket].increment();
+			count.increment();
+			sum.add(value);
+		}
+		
+		public long[] getCounts() {
+			
+			long[] result = new long[counts.length];
+			for (int i = 0; i < counts.length; i++)
+				result[i] = counts[i].sum();
+			return result;
+		}
+		
+		void reset() {
+			
+			for (LongAdder bucket : counts)
+				bucket.reset();
+			count.reset();
+			sum.reset();
+		}
+		
+		public float[] getBounds() {return bounds.clone();}
+		public long getCount() {return count.sum();}
+		public double getMean() {return count.sum() > 0 ? sum.sum() / count.sum() : 0.0;}
+	}
+	
+	public static class Snapshot {
+		
+		private final int epoch, iteration;
+		private final long elapsedNanos, samples, allocatedBytes;
+		private final float trainLoss, valLoss;
+		
+		private final String[] layers;
+		private final long[] forwardNanos, forwardCalls, backwardNanos, backwardCalls;
+		private final float[] gradientNorms;
+		
+		private final float[] lossBounds, accuracyBounds;
+		private final long[] lossCounts, accuracyCounts;
+		private final double meanLoss, meanAccuracy;
+		
+		private Snapshot(Metrics metrics, int epoch, int iteration, float trainLoss, float valLoss) {
+			
+			this.epoch = epoch;
+			this.iteration = iteration;
+			this.trainLoss = trainLoss;
+			this.valLoss = valLoss;
+			
+			elapsedNanos = metrics.started > 0 ? System.nanoTime() - metrics.started : 0;
+			samples = metrics.samples.sum();
+			allocatedBytes = metrics.allocatedSinceStart();
+			
+			layers = metrics.layers.clone();
+			forwardNanos = sums(metrics.forwardNanos);
+			forwardCalls = sums(metrics.forwardCalls);
+			backwardNanos = sums(metrics.backwardNanos);
+			backwardCalls = sums(metrics.backwardCalls);
+			gradientNorms = metrics.gradientNorms.clone();
+			
+			lossBounds = metrics.loss.getBounds();
+			lossCounts = metrics.loss.getCounts();
+			meanLoss = metrics.loss.getMean();
+			accuracyBounds = metrics.accuracy.getBounds();
+			accuracyCounts = metrics.accuracy.getCounts();
+			meanAccuracy = metrics.accuracy.getMean();
+		}
+		
+		private static long[] sums(LongAdder[] adders) {
+			
+			long[] result = new long[adders.length];
+			for (int i = 0; i < adders.length; i++)
+				result[i] = adders[i].sum();
+			return result;
+		}
+		
+		public float getSamplesPerSecond() {return elapsedNanos > 0 ? samples * 1e9f / elapsedNanos : 0.0f;}
+		
+		//Mean nanoseconds a layer took per call, the quickest way to see which one is slow
+		public float getMeanForwardNanos(int layer) {return forwardCalls[layer] > 0 ? (float) forwardNanos[layer] / forwardCalls[layer] : 0.0f;}
+		public float getMeanBackwardNanos(int layer) {return backwardCalls[layer] > 0 ? (float) backwardNanos[layer] / backwardCalls[layer] : 0.0f;}
+		
+		public int getEpoch() {return epoch;}
+		public int getIteration() {return iteration;}
+		public long getElapsedNanos() {return elapsedNanos;}
+		public long getSamples() {return samples;}
+		public long getAllocatedBytes() {return allocatedBytes;}
+		public float getTrainLoss() {return trainLoss;}
+		public float getValLoss() {return valLoss;}
+		public String[] getLayers() {return layers.clone();}
+		public long[] getForwardNanos() {return forwardNanos.clone();}
+		public long[] getForwardCalls() {return forwardCalls.clone();}
+		public long[] getBackwardNanos() {return backwardNanos.clone();}
+		public long[] getBackwardCalls() {return backwardCalls.clone();}
+		public float[] getGradientNorms() {return gradientNorms.clone();}
+		public float[] getLossBounds() {return lossBounds.clone();}
+		public long[] getLossCounts() {return lossCounts.clone();}
+		public double getMeanLoss() {return meanLoss;}
+		public float[] getAccuracyBounds() {return accuracyBounds.clone();}
+		public long[] getAccuracyCounts() {return accuracyCounts.clone();}
+		public double getMeanAccuracy() {return meanAccuracy;}
+	}
+	
+	private final List<Exporter> exporters;
+	private int exportEvery;
+	
+	private String[] layers;
+	private LongAdder[] forwardNanos, forwardCalls, backwardNanos, backwardCalls;
+	private float[] gradientNorms;
+	
+	private final LongAdder samples;
+	private final Histogram loss, accuracy;
+	
+	private volatile long started;
+	private long startAllocated;
+	private Thread trainingThread;
+	
+	public Metrics() {
+		
+		exporters = new ArrayList<Exporter>();
+		samples = new LongAdder();
+		
+		loss = new Histogram(0.001f, 0.01f, 0.05f, 0.1f, 0.25f, 0.5f, 1.0f, 2.0f, 5.0f);
+		accuracy = new Histogram(0.1f, 0.2f, 0.3f, 0.4f, 0.5f, 0.6f, 0.7f, 0.8f, 0.9f, 1.0f);
+		
+		bind(0, 0);
+	}
+	
+	public Metrics exporter(Exporter exporter) {
+		
+		exporters.add(exporter);
+		return this;
+	}
+	
+	//Also export every n training iterations, 0 exports at the end of each epoch only
+	public Metrics exportEvery(int iterations) {
+		
+		if (iterations < 0)
+			throw new RuntimeException("Export interval cannot be negative");
+		
+		exportEvery = iterations;
+		return this;
+	}
+	
+	//Sizes the per-layer recorders, clearing them when the layer count changed
+	synchronized void bind(int convCount, int denseCount) {
+		
+		int count = convCount + denseCount;
+		if (layers != null && layers.length == count)
+			return;
+		
+		layers = new String[count];
+		for (int i = 0; i < count; i++)
+			layers[i] = i < convCount ? "conv" + i : "dense" + (i - convCount);
+		
+		forwardNanos = adders(count);
+		forwardCalls = adders(count);
+		backwardNanos = adders(count);
+		backwardCalls = adders(count);
+		gradientNorms = new float[count];
+	}
+	
+	private static LongAdder[] adders(int count) {
+		
+		LongAdder[] result = new LongAdder[count];
+		for (int i = 0; i < count; i++)
+			result[i] = new LongAdder();
+		return result;
+	}
+	
+	void forward(int layer, long nanos) {
+		
+		forwardNanos[layer].add(nanos);
+		forwardCalls[layer].increment();
+	}
+	
+	void backward(int layer, long nanos) {
+		
+		backwardNanos[layer].add(nanos);
+		backwardCalls[layer].increment();
+	}
+	
+	//Written by the thread applying updates, read racily by snapshots, which is fine for a gauge
+	void gradient(int layer, float norm) {gradientNorms[layer] = norm;}
+	
+	//correct is negative when the output is not a classification and accuracy does not apply
+	void batch(int count, float batchLoss, int correct) {
+		
+		samples.add(count);
+		loss.record(batchLoss / count);
+		if (correct >= 0)
+			accuracy.record((float) correct / count);
+	}
+	
+	//Rows whose largest output matches the label's, or its class index. -1 for a single output
+	static int correct(float[] guess, int outputs, float[] labels, int labelSize, int rows) {
+		
+		if (outputs < 2)
+			return -1;
+		
+		int correct = 0;
+		for (int i = 0; i < rows; i++) {
+			int target = labelSize == 1 ? (int) labels[i] : argmax(labels, i * labelSize, labelSize);
+			if (argmax(guess, i * outputs, outputs) == target)
+				correct++;
+		}
+		return correct;
+	}
+	
+	private static int argmax(float[] values, int offset, int length) {
+		
+		int index = 0;
+		for (int i = 1; i < length; i++)
+			if (values[offset + i] > values[offset + index])
+				index = i;
+		return index;
+	}
+	
+	void trainingStart() {
+		
+		trainingThread = Thread.currentThread();
+		startAllocated = allocatedBytes(trainingThread);
+		if (started == 0)
+			started = System.nanoTime();
+	}
+	
+	void iteration(int epoch, int iteration, float trainLoss, float valLoss) {
+		
+		if (exportEvery > 0 && iteration % exportEvery == 0)
+			export(new Snapshot(this, epoch, iteration, trainLoss, valLoss));
+	}
+	
+	void epoch(int epoch, float trainLoss, float valLoss) {
+		
+		export(new Snapshot(this, epoch, 0, trainLoss, valLoss));
+	}
+	
+	private void export(Snapshot snapshot) {
+		
+		for (Exporter exporter : exporters)
+			exporter.export(snapshot);
+	}
+	
+	public Snapshot snapshot() {return new Snapshot(this, 0, 0, Float.NaN, Float.NaN);}
+	
+	public synchronized void reset() {
+		
+		for (int i = 0; i < layers.length; i++) {
+			forwardNanos[i].reset();
+			forwardCalls[i].reset();
+			backwardNanos[i].reset();
+			backwardCalls[i].reset();
+		}
+		Arrays.fill(gradientNorms, 0.0f);
+		
+		samples.reset();
+		loss.reset();
+		accuracy.reset();
+		started = 0;
+	}
+	
+	//Bytes allocated by the thread driving fit(), parallel replicas allocate on their pool threads and are not counted
+	private long allocatedSinceStart() {
+		
+		if (trainingThread == null)
+			return 0;
+		
+		long bytes = allocatedBytes(trainingThread);
+		return bytes >= 0 && startAllocated >= 0 ? bytes - startAllocated : -1;
+	}
+	
+	//-1 where the JVM does not expose per-thread allocation
+	private static long allocatedBytes(Thread thread) {
+		
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return threads.getThreadAllocatedBytes(thread.getId());
+	}
+	
+	public Histogram getLoss() {return loss;}
+	public Histogram getAccuracy() {return accuracy;}
+	public long getSamples() {return samples.sum();}
+}
@@ -0,0 +1,318 @@
+package deepLearning.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+//Binary model layout, all values little endian and 4-byte aligned:
+//header:  MAGIC, VERSION, orientation (0 horizontal, 1 vertical), loss ordinal (-1 if none), conv count, dense count
+//conv:    input rows, cols, channels, filter count, filter rows, cols, activation, pool, pool stride, pool window (since
+//         version 2), padding, precision ordinal (since version 4), then
+//         filterCount * filterSize floats packed as (filter, channel, row, col)
+//dense:   input shape, neurons, activation, kept weight count (since version 3, -1 unless pruned), precision ordinal
+//         (since version 4), then either
+//         neurons * inputShape weights (row major) or, when pruned, a mask of one bit per weight packed into ints
+//         (bit i % 32 of int i / 32 set where weight i is kept) followed by the kept weights only, then neurons bias floats
+//Weights are always the fp32 masters so a half precision model can keep training after a reload
+//save() writes a temporary file next to the target and moves it over the target atomically, so a crash never leaves a
+//half written model behind, and the target is never mapped for writing. load() reads the file into the heap and bulk
+//copies each array into the float[] its layer owns so the model can train, it keeps no mapping open either
+//map() is for inference: fp32 filters and unpruned fp32 dense weights stay in the read-only mapping, so every process
+//mapping the same file shares one copy of them in the page cache. Pruned and half precision layers are still copied.
+//A mapping is only released once its model is collected, until then Windows refuses to replace the file
+final class ModelFile {
+	
+	static final int MAGIC = 0x4E4E4C44;
+	static final int VERSION = 4;
+	
+	private static final int HEADER_INTS = 6;
+	private static final int CONV_INTS = 12;
+	private static final int DENSE_INTS = 5;
+	
+	private ModelFile() {}
+	
+	static void save(Sequential model, String path) {
+		
+		long size = 4L * HEADER_INTS;
+		for (Conv2D conv : model.getConv())
+			size += 4L * (CONV_INTS + conv.getFilterCount() * conv.getFilterSize());
+		for (Dense dense : model.getDense()) {
+			size += 4L * (DENSE_INTS + dense.getNeurons());
+			
+			if (dense.isPruned())
+				size += 4L * (maskInts(dense.getMask().length) + countKept(dense.getMask()));
+			else
+				size += 4L * dense.getRawWeights().length;
+		}
+		
+		if (size > Integer.MAX_VALUE)
+			throw new RuntimeException("Model is too large for a model file");
+		
+		ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(model.isHorizontal() ? 0 : 1);
+		buffer.putInt(model.getOpt() != null ? model.getOpt().getLoss().ordinal() : -1);
+		buffer.putInt(model.getConvCount());
+		buffer.putInt(model.getDenseCount());
+		
+		for (Conv2D conv : model.getConv()) {
+			
+			for (int i = 0; i < 3; i++)
+				buffer.putInt(conv.getInputShape()[i]);
+			buffer.putInt(conv.getFilterCount());
+			buffer.putInt(conv.getFilterShape()[0]);
+			buffer.putInt(conv.getFilterShape()[1]);
+			buffer.putInt(conv.getLabel().ordinal());
+			buffer.putInt(conv.getPool().ordinal());
+			buffer.putInt(conv.getPoolStride());
+			buffer.putInt(conv.getPoolWindow());
+			buffer.putInt(conv.getPad().ordinal());
+			buffer.putInt(conv.getPrecision().ordinal());
+			
+			putFloats(buffer, conv.getRawFilters());
+		}
+		
+		for (Dense dense : model.getDense()) {
+			
+			buffer.putInt(dense.getInputShape());
+			buffer.putInt(dense.getNeurons());
+			buffer.putInt(dense.getLabel().ordinal());
+			buffer.putInt(dense.isPruned() ? countKept(dense.getMask()) : -1);
+			buffer.putInt(dense.getPrecision().ordinal());
+			
+			if (dense.isPruned())
+				putPruned(buffer, dense.getMask(), dense.getRawWeights());
+			else
+				putFloats(buffer, dense.getRawWeights());
+			putFloats(buffer, dense.getRawBias());
+		}
+		
+		buffer.flip();
+		write(buffer, Paths.get(path).toAbsolutePath());
+	}
+	
+	private static void write(ByteBuffer buffer, Path target) {
+		
+		//Created like any other file, so the model ends up with the usual permissions rather than a temp file's
+		Path temp = target.resolveSibling(target.getFileName() + "." + System.nanoTime() + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(true);
+			}
+			
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			temp.toFile().delete();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static boolean isModelFile(String path) {
+		
+		try (RandomAccessFile file = new RandomAccessFile(new File(path), "r")) {
+			
+			if (file.length() < 4)
+				return false;
+			return Integer.reverseBytes(file.readInt()) == MAGIC;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static Sequential load(String path) {
+		
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new RuntimeException("Model file is too large");
+			
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining())
+				if (channel.read(buffer) < 0)
+					throw new RuntimeException("Model file ended early");
+			
+			buffer.flip();
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return read(buffer);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static InferenceModel map(String path) {
+		
+		try (RandomAccessFile file = new RandomAccessFile(new File(path), "r"); FileChannel channel = file.getChannel()) {
+			
+			//The mapping stays valid after the channel is closed, for as long as the views are reachable
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+			List<FloatBuffer> filters = new ArrayList<FloatBuffer>();
+			List<FloatBuffer> weights = new ArrayList<FloatBuffer>();
+			
+			//The model read here only carries the shapes, its own weight arrays are dropped with it
+			Sequential model = read(buffer, filters, weights);
+			return new InferenceModel(model, filters.toArray(new FloatBuffer[0]), weights.toArray(new FloatBuffer[0]));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static Sequential read(ByteBuffer buffer) {
+		
+		return read(buffer, null, null);
+	}
+	
+	//With views, fp32 arrays are skipped and a view of each is added instead, null for the layers read as usual
+	private static Sequential read(ByteBuffer buffer, List<FloatBuffer> filterViews, List<FloatBuffer> weightViews) {
+		
+		if (buffer.getInt() != MAGIC)
+			throw new RuntimeException("Not a model file: bad magic number");
+		
+		int version = buffer.getInt();
+		if (version < 1 || version > VERSION)
+			throw new RuntimeException("Unsupported model file version: " + version);
+		
+		Sequential model = new Sequential();
+		model.orientation(buffer.getInt() == 0 ? "horizontal" : "vertical");
+		
+		int loss = buffer.getInt();
+		int convCount = buffer.getInt();
+		int denseCount = buffer.getInt();
+		
+		for (int i = 0; i < convCount; i++) {
+			
+			int[] inputShape = {buffer.getInt(), buffer.getInt(), buffer.getInt()};
+			int filterCount = buffer.getInt();
+			int[] filterShape = {buffer.getInt(), buffer.getInt()};
+			
+			Conv2D conv = new Conv2D(filterCount, filterShape, Sequential.ACTIVATION.values()[buffer.getInt()]);
+			Conv2D.POOLING pool = Conv2D.POOLING.values()[buffer.getInt()];
+			int stride = buffer.getInt();
+			conv.setPool(pool, version >= 2 ? buffer.getInt() : stride, stride);
+			conv.setPad(Conv2D.PADDING.values()[buffer.getInt()]);
+			int precision = version >= 4 ? buffer.getInt() : 0;
+			
+			conv.init(inputShape);
+			model.add(conv);
+			
+			if (filterViews != null && precision == 0)
+				filterViews.add(view(buffer, conv.getRawFilters().length));
+			else {
+				if (filterViews != null)
+					filterViews.add(null);
+				getFloats(buffer, conv.getRawFilters());
+			}
+			conv.setPrecision(Sequential.PRECISION.values()[precision]);
+		}
+		
+		for (int i = 0; i < denseCount; i++) {
+			
+			int inputShape = buffer.getInt();
+			int neurons = buffer.getInt();
+			Sequential.ACTIVATION act = Sequential.ACTIVATION.values()[buffer.getInt()];
+			int kept = version >= 3 ? buffer.getInt() : -1;
+			int precision = version >= 4 ? buffer.getInt() : 0;
+			
+			Dense dense = model.isEmpty() ? new Dense(inputShape, neurons, act) : new Dense(neurons, act);
+			model.add(dense);
+			
+			if (dense.getInputShape() != inputShape)
+				throw new RuntimeException("Corrupted model file: dense input shape mismatch");
+			
+			if (weightViews != null && kept < 0 && precision == 0)
+				weightViews.add(view(buffer, dense.getRawWeights().length));
+			else {
+				if (weightViews != null)
+					weightViews.add(null);
+				
+				if (kept >= 0)
+					dense.setMask(getPruned(buffer, dense.getRawWeights()));
+				else
+					getFloats(buffer, dense.getRawWeights());
+			}
+			getFloats(buffer, dense.getRawBias());
+			dense.setPrecision(Sequential.PRECISION.values()[precision]);
+		}
+		
+		if (loss >= 0 && weightViews == null)
+			model.optimizer(Optimizer.LOSS.values()[loss]);
+		return model;
+	}
+	
+	private static int maskInts(int length) {return (length + 31) / 32;}
+	
+	private static int countKept(boolean[] mask) {
+		
+		int kept = 0;
+		for (boolean keep : mask)
+			if (keep)
+				kept++;
+		return kept;
+	}
+	
+	private static void putPruned(ByteBuffer buffer, boolean[] mask, float[] weights) {
+		
+		for (int i = 0; i < maskInts(mask.length); i++) {
+			int bits = 0;
+			for (int b = 0; b < 32 && i * 32 + b < mask.length; b++)
+				if (mask[i * 32 + b])
+					bits |= 1 << b;
+			buffer.putInt(bits);
+		}
+		
+		for (int i = 0; i < weights.length; i++)
+			if (mask[i])
+				buffer.putFloat(weights[i]);
+	}
+	
+	private static boolean[] getPruned(ByteBuffer buffer, float[] weights) {
+		
+		boolean[] mask = new boolean[weights.length];
+		for (int i = 0; i < maskInts(mask.length); i++) {
+			int bits = buffer.getInt();
+			for (int b = 0; b < 32 && i * 32 + b < mask.length; b++)
+				mask[i * 32 + b] = (bits & 1 << b) != 0;
+		}
+		
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = mask[i] ? buffer.getFloat() : 0.0f;
+		return mask;
+	}
+	
+	private static void putFloats(ByteBuffer buffer, float[] values) {
+		
+		buffer.asFloatBuffer().put(values);
+		buffer.position(buffer.position() + 4 * values.length);
+	}
+	
+	private static FloatBuffer view(ByteBuffer buffer, int length) {
+		
+		ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		slice.limit(4 * length);
+		buffer.position(buffer.position() + 4 * length);
+		return slice.asFloatBuffer();
+	}
+	
+	private static void getFloats(ByteBuffer buffer, float[] values) {
+		
+		buffer.asFloatBuffer().get(values);
+		buffer.position(buffer.position() + 4 * values.length);
+	}
+}
@@ -1,6 +1,9 @@
 package deepLearning.utilities;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
 
 import tensors.Float.*;
@@ -15,247 +18,517 @@ public class Optimizer implements Serializable {
 	}
 
 	private LOSS lossFunc;
+	private UpdateRule rule;
 	private Sequential model;
 	
-	private Matrix[] deltaW;
-	private Matrix[][][] deltaF;
+	private float[][] deltaW, deltaB, deltaF;
+	private float[][][] stateW, stateB, stateF;
+	private int step;
 	
-	private Vector[] deltaB;
+	private transient float[][] batchErr, errDense, convErr, pooledErr;
+	private transient float[] flatErr;
+	
+	//Backward nanoseconds per layer for the current sample, reported to the model's Metrics once it is done
+	private transient long[] layerNanos;
+	private transient Vector lossDeriv;
 	
 	public Optimizer(Sequential model, LOSS lossFunc) {
 		
+		this(model, lossFunc, UpdateRule.sgd());
+	}
+	
+	public Optimizer(Sequential model, LOSS lossFunc, UpdateRule rule) {
+		
 		this.model = model;
 		this.lossFunc = lossFunc;
+		this.rule = rule;
 		
-		deltaW = new Matrix[model.getDenseCount()];
-		deltaB = new Vector[model.getDenseCount()];
+		if (model.hasDense()) {
+			Dense last = model.getLastDense();
+			last.getActivation().setLogSoftmax(lossFunc == LOSS.CROSSENTROPY && last.getLabel() == Sequential.ACTIVATION.SOFTMAX);
+		}
+		
+		deltaW = new float[model.getDenseCount()][];
+		deltaB = new float[model.getDenseCount()][];
 		
 		for (int i = 0; i < model.getDenseCount(); i++) {
 			Dense dense = model.getDense().get(i);
 			
-			deltaW[i] = new Matrix(dense.getWeights().getRows(), dense.getWeights().getCols());
-			deltaB[i] = new Vector(dense.getBias().getLength());
+			deltaW[i] = new float[dense.getNeurons() * dense.getInputShape()];
+			deltaB[i] = new float[dense.getNeurons()];
 		}
 		
-		deltaF = new Matrix[model.getConvCount()][][];
+		deltaF = new float[model.getConvCount()][];
 		
 		for (int i = 0; i < model.getConvCount(); i++) {
 			Conv2D conv = model.getConv().get(i);
-			deltaF[i] = new Matrix[conv.getFilterCount()][conv.getFilterShape()[2]];
-			
-			for (int j = 0; j < deltaF[i].length; j++)
-				for (int k = 0; k < deltaF[i][j].length; k++)
-					deltaF[i][j][k] = new Matrix(conv.getFilterShape()[0], model.getConv().get(i).getFilterShape()[1]);
-			
-		}	
+			deltaF[i] = new float[conv.getFilterCount() * conv.getFilterSize()];
+		}
+		
+		stateW = allocateState(deltaW, rule.getStateCount());
+		stateB = allocateState(deltaB, rule.getStateCount());
+		stateF = allocateState(deltaF, rule.getStateCount());
+		
+		step = 0;
+		allocateWorkspace();
 	}
 	
 	public void zeroGrad() {
 		
 		for (int i = 0; i < model.getDenseCount(); i++) {
-			deltaW[i].setAll(0.0f);
-			deltaB[i].setAll(0.0f);
+			Arrays.fill(deltaW[i], 0.0f);
+			Arrays.fill(deltaB[i], 0.0f);
+		}
+		
+		for (int i = 0; i < model.getConvCount(); i++)
+			Arrays.fill(deltaF[i], 0.0f);
+	}
+	
+	public void accumulate(Optimizer other) {
+		
+		for (int i = 0; i < model.getDenseCount(); i++) {
+			for (int j = 0; j < deltaW[i].length; j++)
+				deltaW[i][j] += other.deltaW[i][j];
+			
+			for (int j = 0; j < deltaB[i].length; j++)
+				deltaB[i][j] += other.deltaB[i][j];
 		}
 		
 		for (int i = 0; i < model.getConvCount(); i++)
 			for (int j = 0; j < deltaF[i].length; j++)
-				for (int k = 0; k < deltaF[i][j].length; k++)
-					deltaF[i][j][k].setAll(0.0f);
+				deltaF[i][j] += other.deltaF[i][j];
 	}
 	
 	public float computeLoss(Vector guess, Vector label) {
-			if (getLoss() == LOSS.MSE)
-				return Vector.sub(guess, label).normSq();
-			else if (label.max() == 1.0f)
-				return - (float) Math.log(Math.max(guess.get(label.indexMax()), 1e-7));
-			else {
-				float sum = 0;
-				for (int i = 0; i < guess.getLength(); i++)
-					sum -= (float) label.get(i) * Math.log(Math.max(guess.get(i), 1e-7));
-				return sum;
-			}
+		
+		if (isClassIndex(label, guess.getLength()))
+			return computeLoss(guess.get(), 0, guess.getLength(), (int) label.get(0));
+		return computeLoss(guess.get(), label.get(), 0, guess.getLength());
+	}
+	
+	public float computeLoss(float[] guess, float[] label, int offset, int length) {
+		
+		int end = offset + length;
+		
+		if (getLoss() == LOSS.MSE)
+			return Kernels.squaredDistance(guess, label, offset, length);
+		
+		float[] logProb = getLogProbabilities(guess);
+		
+		float sum = 0;
+		for (int i = offset; i < end; i++)
+			if (label[i] != 0.0f)
+				sum -= label[i] * (logProb != null ? logProb[i] : (float) Math.log(Math.max(guess[i], 1e-7)));
+		return sum;
 	}
 	
+	//Cross entropy against a class index in place of a one hot label
+	public float computeLoss(float[] guess, int offset, int length, int target) {
+		
+		if (getLoss() != LOSS.CROSSENTROPY)
+			throw new RuntimeException("Class index labels require the cross entropy loss");
+		
+		if (target < 0 || target >= length)
+			throw new RuntimeException("Class index out of range: " + target);
+		
+		float[] logProb = getLogProbabilities(guess);
+		if (logProb != null)
+			return - logProb[offset + target];
+		return - (float) Math.log(Math.max(guess[offset + target], 1e-7));
+	}
+	
+	//Returns the optimizer's reusable loss derivative buffer, it is overwritten by the next call
 	public Vector computeLossDeriv(Vector guess, Vector label) {
 		
+		if (lossDeriv == null || lossDeriv.getLength() != guess.getLength())
+			lossDeriv = new Vector(guess.getLength());
+		
+		float[] g = guess.get();
+		float[] l = label.get();
+		float[] deriv = lossDeriv.get();
+		
+		boolean classIndex = isClassIndex(label, deriv.length);
+		int target = classIndex ? (int) l[0] : -1;
+		
+		if (!model.hasDense() && getLoss() == LOSS.CROSSENTROPY)
+			for (int i = 0; i < deriv.length; i++)
+				deriv[i] = classIndex ? (i == target ? - 1.0f / g[i] : 0.0f) : - l[i] / g[i];
+		else if (classIndex) {
+			System.arraycopy(g, 0, deriv, 0, deriv.length);
+			deriv[target] -= 1.0f;
+		} else
+			for (int i = 0; i < deriv.length; i++)
+				deriv[i] = g[i] - l[i];
+		
+		if (model.hasDense() && getLoss() == LOSS.MSE)
+			Kernels.multElementWise(deriv, model.getLastDense().getDerivative().get(), deriv.length);
+		return lossDeriv;
+	}
+	
+	public void computeLossDeriv(float[] guess, float[] label, float[] lossDeriv, int batchSize) {
+		
 		if (!model.hasDense())
-			if (getLoss() == LOSS.MSE)
-				return Vector.sub(guess, label);
-			else
-				return Vector.mult(Vector.divElementWise(label, guess), - 1.0f);
-		else
-			if (getLoss() == LOSS.MSE) {
-				Vector vec = Vector.sub(guess, label);
-				vec.multElementWise(model.getLastDense().getDerivative());
-				return vec;
-			} else
-				return Vector.sub(guess, label);
+			throw new RuntimeException("Batched loss derivative requires a dense output layer");
+		
+		computeLossAndDeriv(guess, label, model.getLastDense().getNeurons(), lossDeriv, batchSize);
+	}
+	
+	//Batched loss and derivative (p - y for cross entropy) in one pass over the output, returns the summed loss.
+	//labelSize is the output width, or 1 when every label is a class index
+	public float computeLossAndDeriv(float[] guess, float[] label, int labelSize, float[] lossDeriv, int batchSize) {
+		
+		if (!model.hasDense())
+			throw new RuntimeException("Batched loss derivative requires a dense output layer");
+		
+		int outputs = model.getLastDense().getNeurons();
+		boolean classIndex = labelSize == 1 && outputs > 1;
+		
+		float loss = 0.0f;
+		for (int i = 0; i < batchSize; i++) {
+			int offset = i * outputs;
+			
+			if (classIndex) {
+				int target = (int) label[i];
+				loss += computeLoss(guess, offset, outputs, target);
+				
+				System.arraycopy(guess, offset, lossDeriv, offset, outputs);
+				lossDeriv[offset + target] -= 1.0f;
+			} else {
+				loss += computeLoss(guess, label, offset, outputs);
+				
+				for (int j = offset; j < offset + outputs; j++)
+					lossDeriv[j] = guess[j] - label[j];
+			}
+		}
+		
+		if (getLoss() == LOSS.MSE)
+			Kernels.multElementWise(lossDeriv, model.getLastDense().getBatchDer(), batchSize * outputs);
+		return loss;
+	}
+	
+	//A single value labelling a wider output is read as a class index
+	private static boolean isClassIndex(Vector label, int outputs) {
+		
+		return label.getLength() == 1 && outputs > 1;
+	}
+	
+	//The log probabilities the softmax output computed along with guess, null if guess is not that output or had no training pass
+	private float[] getLogProbabilities(float[] guess) {
+		
+		if (getLoss() != LOSS.CROSSENTROPY || !model.hasDense())
+			return null;
+		
+		Dense last = model.getLastDense();
+		if (!last.getActivation().isLogSoftmax())
+			return null;
+		
+		if (guess == last.getValue().get())
+			return last.isDerived() ? last.getLogVal() : null;
+		if (guess == last.getBatchVal())
+			return last.isBatchDerived() ? last.getBatchLogVal() : null;
+		return null;
 	}
 	
 	public void fix(Sequential.Options options) {
 		
+		step++;
+		
+		float weightScale = 1.0f;
+		if (options.isRegularized())
+			weightScale += options.getRegFactor();
+		
+		Metrics metrics = model.getMetrics();
+		if (metrics != null)
+			recordGradientNorms(metrics);
+		
 		for (int i = 0; i < model.getDenseCount(); i++) {
 			Dense dense = model.getDense().get(i);
 			
-			if (options.isRegularized())
-				deltaW[i].add(Matrix.mult(deltaW[i], options.getRegFactor()));
-			
-			deltaW[i].mult(options.lr);
-			deltaB[i].mult(options.lr);
-			
-			dense.getWeights().sub(deltaW[i]);
-			dense.getBias().sub(deltaB[i]);
+			rule.update(dense.getRawWeights(), deltaW[i], stateW[i], options.lr, weightScale, true, step);
+			dense.applyMask();
+			dense.narrow();
+			rule.update(dense.getRawBias(), deltaB[i], stateB[i], options.lr, 1.0f, false, step);
 		}
 		
 		for (int i = 0; i < model.getConvCount(); i++) {
 			Conv2D conv = model.getConv().get(i);
 			
-			for (int j = 0; j < conv.getFilterCount(); j++)
-				for (int k = 0; k < conv.getFilterShape()[2]; k++) {
-					
-					if (options.isRegularized())
-						deltaF[i][j][k].add(Matrix.mult(deltaF[i][j][k], options.getRegFactor()));
-					
-					deltaF[i][j][k].mult(options.lr);
-					conv.getFilters()[j].getLayers()[k].sub(deltaF[i][j][k]);
-				}
+			rule.update(conv.getRawFilters(), deltaF[i], stateF[i], options.lr, weightScale, true, step);
+			conv.narrow();
 		}
 	}
 	
 	public void backpropagate(Vector input, Vector lossDeriv) {
 		
+		if (errDense == null)
+			allocateWorkspace();
+		
 		List<Dense> denses = model.getDense();
 		List<Conv2D> convs = model.getConv();
 		
-		Vector[] errDense = new Vector[denses.size()];
-		Matrix[][] errConv = new Matrix[convs.size()][];
-		for (int i = 0; i < convs.size(); i++)
-			errConv[i] = new Matrix[convs.get(i).getFilterCount()];
+		Metrics metrics = model.getMetrics();
+		long start = metrics != null ? System.nanoTime() : 0;
+		int convCount = convs.size();
 		
+		float[] lastErr = lossDeriv.get();
 		if (model.hasDense())
-			errDense[denses.size() - 1] = lossDeriv;
+			errDense[denses.size() - 1] = lastErr;
 		
 		for (int i = denses.size() - 2; i >= 0; i--) {
 			Dense fwd = denses.get(i + 1);
 			Dense current = denses.get(i);
 			
-			errDense[i] = Vector.mult(Matrix.transpose(fwd.getWeights()), errDense[i + 1]);
-			errDense[i].multElementWise(current.getDerivative());
+			fwd.multWeights(errDense[i + 1], errDense[i], 1);
+			Kernels.multElementWise(errDense[i], current.getDerivative().get(), current.getNeurons());
+			if (metrics != null)
+				start = charge(convCount + i + 1, start);
 		}
 		
 		if (model.hasConv()) {
 			Conv2D last = model.getLastConv();
+			int[] shape = last.getPooledOutShape();
 			
 			if (model.hasDense()) {
 				Dense first = model.getFirstDense();
-				errConv[convs.size() - 1] = last.toErrorVolume(Vector.mult(Matrix.transpose(first.getWeights()), errDense[0]), model.getOrientation());
-			} else
-				errConv[convs.size() - 1] = last.toErrorVolume(lossDeriv, model.getOrientation());
-			
-			if (last.getPool() != Conv2D.POOLING.NONE)
-				errConv[convs.size() - 1] = unPool(errConv[convs.size() - 1], last);
+				first.multWeights(errDense[0], flatErr, 1);
+				lastErr = flatErr;
+			}
 			
-			for (int i = 0; i < model.getLastConv().getFilterCount(); i++)
-				errConv[convs.size() - 1][i].multElementWise(last.getOutDer()[i]);
+			if (model.isHorizontal())
+				Kernels.toPlanar(lastErr, pooledErr[convs.size() - 1], shape[0], shape[1], shape[2]);
+			else
+				System.arraycopy(lastErr, 0, pooledErr[convs.size() - 1], 0, last.getPooledOutSize());
+			if (metrics != null)
+				start = charge(model.hasDense() ? convCount : convCount - 1, start);
 		}
 		
-		for (int i = convs.size() - 2; i >= 0; i--) {
-			Conv2D fwd = convs.get(i + 1);
+		for (int i = convs.size() - 1; i >= 0; i--) {
 			Conv2D current = convs.get(i);
 			
-			for (int j = 0; j < current.getFilterCount(); j++) {
-				errConv[i][j] = new Matrix(current.getPooledOutShape()[0], current.getPooledOutShape()[1]);
-				for (int k = 0; k < fwd.getFilterCount(); k++) //Aqui, si se usa padding, hay que UNPADDEAR: .add(unPad(lo que sea))
-					if (fwd.getPad() == Conv2D.PADDING.VALID)
-						errConv[i][j].add(Matrix.convolve(Matrix.zeroPad(errConv[i + 1][k], fwd.getFilterShape()[0] - 1, fwd.getFilterShape()[1] - 1), Matrix.rotate(fwd.getFilters()[k].getLayers()[j], - 2), 1));
-					else
-						errConv[i][j].add(Matrix.unPad(Matrix.convolve(Matrix.zeroPad(errConv[i + 1][k], fwd.getFilterShape()[0] - 1, fwd.getFilterShape()[1] - 1), Matrix.rotate(fwd.getFilters()[k].getLayers()[j], - 2), 1), fwd.getPadLayers()[0], fwd.getPadLayers()[2]));
-			}
-			
 			if (current.getPool() != Conv2D.POOLING.NONE)
-				errConv[i] = unPool(errConv[i], current);
+				unPool(pooledErr[i], current, convErr[i]);
+			
+			Kernels.multElementWise(convErr[i], current.getRawDerivative(), convErr[i].length);
 			
-			for (int j = 0; j < current.getFilterCount(); j++)
-				errConv[i][j].multElementWise(current.getOutDer()[j]);
+			if (i > 0)
+				current.computeInputError(convErr[i], pooledErr[i - 1]);
+			if (metrics != null)
+				start = charge(i, start);
 		}
 		
 		for (int i = 0; i < convs.size(); i++) {
-			
-			Conv2D current = convs.get(i);
-			if (i != 0) {
-				Conv2D prev = convs.get(i - 1);
-				
-				for (int j = 0; j < current.getFilterCount(); j++)
-					for (int k = 0; k < prev.getFilterCount(); k++)
-						if (current.getPad() == Conv2D.PADDING.VALID)
-							deltaF[i][j][k].add(Matrix.convolve(prev.getPooledOutVal()[k], errConv[i][j], 1));
-						else
-							deltaF[i][j][k].add(Matrix.convolve(Matrix.zeroPad(prev.getPooledOutVal()[k], current.getPadLayers()[0], current.getPadLayers()[1]), errConv[i][j], 1));
-			} else
-				for (int j = 0; j < current.getFilterCount(); j++)
-					for (int k = 0; k < current.getInputShape()[2]; k++)
-						if (current.getPad() == Conv2D.PADDING.VALID)
-							deltaF[i][j][k].add(Matrix.convolve(current.toInputVolume(input, model.getOrientation())[k], errConv[i][j], 1));
-						else
-							deltaF[i][j][k].add(Matrix.convolve(Matrix.zeroPad(current.toInputVolume(input, model.getOrientation())[k], current.getPadLayers()[0], current.getPadLayers()[1]), errConv[i][j], 1));
+			convs.get(i).accumulateGradient(convErr[i], deltaF[i]);
+			if (metrics != null)
+				start = charge(i, start);
 		}
 		
 		for (int i = 0; i < denses.size(); i++) {
+			Dense current = denses.get(i);
 			
-			if (i != 0) {
-				Dense prev = denses.get(i - 1);
-				deltaW[i].add(errDense[i].mult(prev.getValue()));
-			} else if (!model.hasConv())
-				deltaW[i].add(errDense[i].mult(input));
+			float[] prevVal;
+			if (i != 0)
+				prevVal = denses.get(i - 1).getValue().get();
+			else if (!model.hasConv())
+				prevVal = input.get();
 			else
-				deltaW[i].add(errDense[i].mult(model.getLastConv().getFlatOutput()));
+				prevVal = model.getLastConv().getFlatOutput().get();
 			
-			deltaB[i].add(errDense[i]);
+			Kernels.multTransA(errDense[i], prevVal, deltaW[i], current.getNeurons(), 1, current.getInputShape(), true);
+			Kernels.sumRows(errDense[i], deltaB[i], 1, current.getNeurons());
+			if (metrics != null)
+				start = charge(convCount + i, start);
 		}
+		
+		if (metrics != null)
+			report(metrics);
 	}
 	
-	private Matrix[] unPool(Matrix[] pooledErrors, Conv2D conv) {
+	public void backpropagate(float[] input, float[] lossDeriv, int batchSize) {
 		
-		Matrix[] unPooledErrors = new Matrix[pooledErrors.length];
-		int stride = conv.getPoolStride();
+		if (model.hasConv())
+			throw new RuntimeException("Batched backpropagation is only supported for dense models");
 		
-		for (int i = 0; i < pooledErrors.length; i++) {
+		List<Dense> denses = model.getDense();
+		if (batchErr == null || batchErr.length != denses.size())
+			batchErr = new float[denses.size()][];
+		
+		Metrics metrics = model.getMetrics();
+		long start = metrics != null ? System.nanoTime() : 0;
+		
+		float[] err = lossDeriv;
+		for (int i = denses.size() - 1; i >= 0; i--) {
+			Dense current = denses.get(i);
 			
-			Matrix values = conv.getOutVal()[i];
-			Matrix pooled = pooledErrors[i];
-			Matrix unPooled = new Matrix(values.getRows(), values.getCols());
+			float[] prevVal = i != 0 ? denses.get(i - 1).getBatchVal() : input;
+			Kernels.multTransA(err, prevVal, deltaW[i], current.getNeurons(), batchSize, current.getInputShape(), true);
+			Kernels.sumRows(err, deltaB[i], batchSize, current.getNeurons());
 			
-			int x;
-			int y;
+			if (i > 0) {
+				Dense prev = denses.get(i - 1);
+				batchErr[i - 1] = Kernels.ensure(batchErr[i - 1], batchSize * prev.getNeurons());
+				
+				current.multWeights(err, batchErr[i - 1], batchSize);
+				Kernels.multElementWise(batchErr[i - 1], prev.getBatchDer(), batchSize * prev.getNeurons());
+				err = batchErr[i - 1];
+			}
 			
-			for (int j = 0; j < pooled.getRows(); j++) {
-				x = j * stride;
-				for (int k = 0; k < pooled.getCols(); k++) {
-					y = k * stride;
-					
-					Matrix portionValue = values.getPortion(x, y, stride, stride);
-					Matrix portionUnPooled = unPooled.getPortion(x, y, stride, stride);
-					
-					if (conv.getPool() == Conv2D.POOLING.MAX) {
-						
-						int[] maxIndex = portionValue.indexMax();
-						portionUnPooled.set(maxIndex[0], maxIndex[1], pooled.get(j, k));
-					} else if (conv.getPool() == Conv2D.POOLING.AVG)
-						portionUnPooled.setAll(pooled.get(j, k) / (stride * stride));
-					
-					unPooled.setPortion(portionUnPooled, x, y);
-				}
+			if (metrics != null) {
+				long now = System.nanoTime();
+				metrics.backward(i, now - start);
+				start = now;
 			}
+		}
+	}
+	
+	//Adds the time since start to the layer and returns the new start
+	private long charge(int layer, long start) {
+		
+		if (layerNanos == null || layerNanos.length != model.getCount())
+			layerNanos = new long[model.getCount()];
+		
+		long now = System.nanoTime();
+		layerNanos[layer] += now - start;
+		return now;
+	}
+	
+	private void report(Metrics metrics) {
+		
+		for (int i = 0; i < layerNanos.length; i++) {
+			metrics.backward(i, layerNanos[i]);
+			layerNanos[i] = 0;
+		}
+	}
+	
+	//L2 norm of each layer's accumulated gradient, weights and bias together, before the update consumes it
+	private void recordGradientNorms(Metrics metrics) {
+		
+		int convCount = model.getConvCount();
+		for (int i = 0; i < convCount; i++)
+			metrics.gradient(i, (float) Math.sqrt(Kernels.dot(deltaF[i], 0, deltaF[i], 0, deltaF[i].length)));
+		
+		for (int i = 0; i < model.getDenseCount(); i++) {
+			float squares = Kernels.dot(deltaW[i], 0, deltaW[i], 0, deltaW[i].length) + Kernels.dot(deltaB[i], 0, deltaB[i], 0, deltaB[i].length);
+			metrics.gradient(convCount + i, (float) Math.sqrt(squares));
+		}
+	}
+	
+	//Sizes every per-sample error buffer from the bound model, so the backward pass never allocates
+	private void allocateWorkspace() {
+		
+		List<Dense> denses = model.getDense();
+		List<Conv2D> convs = model.getConv();
+		
+		errDense = new float[denses.size()][];
+		for (int i = 0; i < denses.size() - 1; i++)
+			errDense[i] = new float[denses.get(i).getNeurons()];
+		
+		convErr = new float[convs.size()][];
+		pooledErr = new float[convs.size()][];
+		for (int i = 0; i < convs.size(); i++) {
+			Conv2D conv = convs.get(i);
 			
-			unPooledErrors[i] = unPooled;
+			convErr[i] = new float[conv.getFilterCount() * conv.getOutputShape()[0] * conv.getOutputShape()[1]];
+			pooledErr[i] = conv.getPool() == Conv2D.POOLING.NONE ? convErr[i] : new float[conv.getPooledOutSize()];
+		}
+		
+		if (model.hasConv() && model.hasDense())
+			flatErr = new float[model.getFirstDense().getInputShape()];
+		
+		int outputs = model.isEmpty() ? 0 : model.getOutputSize();
+		lossDeriv = new Vector(outputs);
+	}
+	
+	//rule.getStateCount() arrays per layer, each as long as its gradient
+	private static float[][][] allocateState(float[][] deltas, int states) {
+		
+		float[][][] state = new float[deltas.length][states][];
+		for (int i = 0; i < deltas.length; i++)
+			for (int j = 0; j < states; j++)
+				state[i][j] = new float[deltas[i].length];
+		return state;
+	}
+	
+	//Models serialized before the layers were flattened hold the gradients as Matrix and Vector arrays and have no update
+	//rule, they resume with plain SGD
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		
+		ObjectInputStream.GetField fields = in.readFields();
+		
+		lossFunc = (LOSS) fields.get("lossFunc", null);
+		model = (Sequential) fields.get("model", null);
+		rule = (UpdateRule) fields.get("rule", null);
+		if (rule == null)
+			rule = UpdateRule.sgd();
+		
+		deltaW = toFloats((Object[]) fields.get("deltaW", null));
+		deltaB = toFloats((Object[]) fields.get("deltaB", null));
+		deltaF = toFloats((Object[]) fields.get("deltaF", null));
+		
+		stateW = (float[][][]) fields.get("stateW", null);
+		stateB = (float[][][]) fields.get("stateB", null);
+		stateF = (float[][][]) fields.get("stateF", null);
+		if (stateW == null) {
+			stateW = allocateState(deltaW, rule.getStateCount());
+			stateB = allocateState(deltaB, rule.getStateCount());
+			stateF = allocateState(deltaF, rule.getStateCount());
 		}
 		
-		return unPooledErrors;
+		step = fields.get("step", 0);
+	}
+	
+	private static float[][] toFloats(Object[] field) {
+		
+		if (field == null || field instanceof float[][])
+			return (float[][]) field;
+		
+		float[][] result = new float[field.length][];
+		for (int i = 0; i < field.length; i++)
+			result[i] = Dense.toFloats(field[i]);
+		return result;
+	}
+	
+	private static void unPool(float[] pooledErrors, Conv2D conv, float[] unPooledErrors) {
+		
+		Kernels.unPool(pooledErrors, conv.getFilterCount(), conv.getOutputShape()[0], conv.getOutputShape()[1], conv.getPoolRows(), conv.getPoolCols(),
+				conv.getPoolStride(), conv.getPooledOutShape()[0], conv.getPooledOutShape()[1], conv.getPool() == Conv2D.POOLING.MAX, conv.getPoolIndex(), unPooledErrors);
 	}
 	
 	public LOSS getLoss() {return lossFunc;}
+	public UpdateRule getRule() {return rule;}
+	public int getStep() {return step;}
 	public Sequential getModel() {return model;}
-	public Matrix[] getDeltaW() {return deltaW;}
-	public Matrix[][][] getDeltaF() {return deltaF;}
-	public Vector[] getDeltaB() {return deltaB;}
+	public float[][] getRawDeltaW() {return deltaW;}
+	public float[][] getRawDeltaF() {return deltaF;}
+	public float[][] getRawDeltaB() {return deltaB;}
+	
+	//Views over the flat gradients, writes go through
+	public Matrix[] getDeltaW() {
+		
+		Matrix[] result = new Matrix[deltaW.length];
+		for (int i = 0; i < result.length; i++)
+			result[i] = new Matrix(deltaW[i], model.getDense().get(i).getNeurons(), model.getDense().get(i).getInputShape());
+		return result;
+	}
+	
+	public Vector[] getDeltaB() {
+		
+		Vector[] result = new Vector[deltaB.length];
+		for (int i = 0; i < result.length; i++)
+			result[i] = new Vector(deltaB[i]);
+		return result;
+	}
+	
+	//[conv][filter][channel], copies since each filter's channels are slices of one packed array
+	public Matrix[][][] getDeltaF() {
+		
+		Matrix[][][] result = new Matrix[deltaF.length][][];
+		for (int i = 0; i < result.length; i++) {
+			Conv2D conv = model.getConv().get(i);
+			
+			result[i] = new Matrix[conv.getFilterCount()][];
+			for (int j = 0; j < result[i].length; j++)
+				result[i][j] = new Filter(conv.getFilterShape(), deltaF[i], j * conv.getFilterSize()).getLayers();
+		}
+		return result;
+	}
 }
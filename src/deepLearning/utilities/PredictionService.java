@@ -0,0 +1,402 @@
+package deepLearning.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+//Collects concurrent single sample requests into micro-batches and runs each batch as one forward pass. A worker takes
+//the first waiting request, then keeps collecting until the batch is full or maxWait has passed since that request
+public class PredictionService implements AutoCloseable {
+	
+	private static class Request {
+		
+		private final float[] input;
+		private final CompletableFuture<float[]> result;
+		private final long enqueued;
+		
+		private Request(float[] input) {
+			
+			this.input = input;
+			result = new CompletableFuture<float[]>();
+			enqueued = System.nanoTime();
+		}
+	}
+	
+	private final InferenceModel model;
+	
+	private int maxBatch;
+	private long maxWaitMicros;
+	private int workers;
+	private int capacity;
+	
+	private BlockingQueue<Request> queue;
+	private Thread[] threads;
+	private volatile boolean running;
+	
+	private HttpServer server;
+	private ExecutorService handlers;
+	
+	private Metrics.Histogram batchSizes, latency;
+	private final LongAdder requests, batches, rejected;
+	
+	public PredictionService(InferenceModel model) {
+		
+		this.model = model;
+		
+		maxBatch = 32;
+		maxWaitMicros = 500;
+		workers = 1;
+		capacity = 4096;
+		
+		requests = new LongAdder();
+		batches = new LongAdder();
+		rejected = new LongAdder();
+	}
+	
+	public PredictionService(Sequential model) {
+		
+		this(model.compile());
+	}
+	
+	public PredictionService maxBatch(int size) {
+		
+		if (size < 1)
+			throw new RuntimeException("Batch size must be greater than 0");
+		
+		checkStopped();
+		maxBatch = size;
+		return this;
+	}
+	
+	//How long the first request of a batch may wait for others to join it, 0 runs whatever is already queued
+	public PredictionService maxWait(long micros) {
+		
+		if (micros < 0)
+			throw new RuntimeException("Max wait must not be negative");
+		
+		checkStopped();
+		maxWaitMicros = micros;
+		return this;
+	}
+	
+	//Threads running batches, each with its own scratch buffers. One per core the model should use
+	public PredictionService workers(int count) {
+		
+		if (count < 1)
+			throw new RuntimeException("Worker count must be greater than 0");
+		
+		checkStopped();
+		workers = count;
+		return this;
+	}
+	
+	//Requests waiting beyond this are rejected instead of queued, which bounds the latency a caller can see
+	public PredictionService capacity(int requests) {
+		
+		if (requests < 1)
+			throw new RuntimeException("Queue capacity must be greater than 0");
+		
+		checkStopped();
+		capacity = requests;
+		return this;
+	}
+	
+	private void checkStopped() {
+		
+		if (running)
+			throw new RuntimeException("Prediction service is already running");
+	}
+	
+	public synchronized PredictionService start() {
+		
+		checkStopped();
+		
+		queue = new ArrayBlockingQueue<Request>(capacity);
+		batchSizes = new Metrics.Histogram(sizeBounds(maxBatch));
+		latency = new Metrics.Histogram(50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000);
+		running = true;
+		
+		threads = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+			threads[i] = new Thread(this::work, "PredictionService-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		return this;
+	}
+	
+	//Powers of two up to the batch limit, so the last bucket holds only full batches
+	private static float[] sizeBounds(int maxBatch) {
+		
+		int count = 0;
+		for (int size = 2; size <= maxBatch; size *= 2)
+			count++;
+		
+		float[] bounds = new float[count];
+		for (int i = 0, size = 2; i < count; i++, size *= 2)
+			bounds[i] = size;
+		
+		if (count > 0 && bounds[count - 1] == maxBatch)
+			return bounds;
+		
+		bounds = Arrays.copyOf(bounds, count + 1);
+		bounds[count] = maxBatch;
+		return bounds;
+	}
+	
+	public CompletableFuture<float[]> submit(float[] input) {
+		
+		if (input.length != model.getInputSize())
+			throw new RuntimeException("Input dimensions mismatch with the network input shape");
+		
+		Request request = new Request(input.clone());
+		if (!running) {
+			request.result.completeExceptionally(new RuntimeException("Prediction service is not running"));
+			return request.result;
+		}
+		
+		if (!queue.offer(request)) {
+			rejected.increment();
+			request.result.completeExceptionally(new RuntimeException("Prediction queue is full"));
+		} else if (!running && queue.remove(request))
+			request.result.completeExceptionally(new RuntimeException("Prediction service closed"));
+		
+		return request.result;
+	}
+	
+	//Blocks the calling thread until its batch has run
+	public float[] predict(float[] input) {
+		
+		try {
+			return submit(input).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	private void work() {
+		
+		int inputSize = model.getInputSize();
+		int outputSize = model.getOutputSize();
+		
+		Request[] batch = new Request[maxBatch];
+		float[] inputs = new float[maxBatch * inputSize];
+		float[] outputs = new float[maxBatch * outputSize];
+		
+		while (running) {
+			int count = 0;
+			
+			try {
+				Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch[count++] = first;
+				
+				long deadline = first.enqueued + maxWaitMicros * 1000;
+				while (count < maxBatch) {
+					long remaining = deadline - System.nanoTime();
+					Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null)
+						break;
+					batch[count++] = next;
+				}
+			} catch (InterruptedException e) {
+				//Closing, whatever was already collected still runs
+				if (count == 0)
+					break;
+			}
+			
+			run(batch, count, inputs, outputs, inputSize, outputSize);
+			Arrays.fill(batch, 0, count, null);
+		}
+	}
+	
+	private void run(Request[] batch, int count, float[] inputs, float[] outputs, int inputSize, int outputSize) {
+		
+		for (int i = 0; i < count; i++)
+			System.arraycopy(batch[i].input, 0, inputs, i * inputSize, inputSize);
+		
+		try {
+			model.predict(inputs, outputs, count);
+		} catch (RuntimeException e) {
+			for (int i = 0; i < count; i++)
+				batch[i].result.completeExceptionally(e);
+			return;
+		}
+		
+		long now = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			latency.record((now - batch[i].enqueued) / 1000.0f);
+			batch[i].result.complete(Arrays.copyOfRange(outputs, i * outputSize, (i + 1) * outputSize));
+		}
+		
+		batchSizes.record(count);
+		batches.increment();
+		requests.add(count);
+	}
+	
+	//POST /predict with the input as comma separated floats, answered the same way. Each exchange blocks a pooled handler
+	//thread on its future, the batching happens behind it
+	public synchronized PredictionService serve(int port) {
+		
+		if (!running)
+			start();
+		
+		if (server != null)
+			throw new RuntimeException("Prediction service is already serving");
+		
+		try {
+			server = HttpServer.create(new InetSocketAddress(port), 0);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		handlers = Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "PredictionService-http");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		server.createContext("/predict", this::handle);
+		server.setExecutor(handlers);
+		server.start();
+		return this;
+	}
+	
+	private void handle(HttpExchange exchange) throws IOException {
+		
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				respond(exchange, 405, "Only POST is supported");
+				return;
+			}
+			
+			float[] input;
+			try {
+				input = parse(read(exchange.getRequestBody()));
+			} catch (NumberFormatException e) {
+				respond(exchange, 400, "Malformed input");
+				return;
+			}
+			
+			if (input.length != model.getInputSize()) {
+				respond(exchange, 400, "Expected " + model.getInputSize() + " values");
+				return;
+			}
+			
+			float[] output;
+			try {
+				output = predict(input);
+			} catch (RuntimeException e) {
+				respond(exchange, 503, String.valueOf(e.getMessage()));
+				return;
+			}
+			
+			StringBuilder body = new StringBuilder(output.length * 12);
+			for (int i = 0; i < output.length; i++)
+				body.append(i > 0 ? "," : "").append(output[i]);
+			respond(exchange, 200, body.toString());
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	private static String read(InputStream in) throws IOException {
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int read; (read = in.read(buffer)) > 0;)
+			bytes.write(buffer, 0, read);
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	private static float[] parse(String body) {
+		
+		String[] values = body.trim().split("\\s*,\\s*");
+		float[] result = new float[values.length];
+		for (int i = 0; i < values.length; i++)
+			result[i] = Float.parseFloat(values[i]);
+		return result;
+	}
+	
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+	
+	//Stops the server and the workers, requests still queued fail instead of hanging their callers
+	@Override
+	public synchronized void close() {
+		
+		if (server != null) {
+			server.stop(0);
+			handlers.shutdownNow();
+			server = null;
+		}
+		
+		if (!running)
+			return;
+		
+		running = false;
+		for (Thread thread : threads)
+			thread.interrupt();
+		
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		
+		for (Request request; (request = queue.poll()) != null;)
+			request.result.completeExceptionally(new RuntimeException("Prediction service closed"));
+	}
+	
+	public int getPort() {
+		
+		if (server == null)
+			throw new RuntimeException("Prediction service is not serving");
+		return server.getAddress().getPort();
+	}
+	
+	public int getQueueDepth() {return queue != null ? queue.size() : 0;}
+	public long getRequests() {return requests.sum();}
+	public long getBatches() {return batches.sum();}
+	public long getRejected() {return rejected.sum();}
+	public float getMeanBatchSize() {return batches.sum() > 0 ? (float) requests.sum() / batches.sum() : 0.0f;}
+	
+	//Null until start()
+	public Metrics.Histogram getBatchSizes() {return batchSizes;}
+	
+	//Microseconds from submit() to the result being ready
+	public Metrics.Histogram getLatency() {return latency;}
+	
+	public boolean isRunning() {return running;}
+}
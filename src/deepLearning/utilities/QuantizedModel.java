@@ -0,0 +1,256 @@
+package deepLearning.utilities;
+
+public class QuantizedModel extends InferenceModel {
+	
+	public static class Report {
+		
+		private final int samples, floatCorrect, quantizedCorrect, agreements;
+		private final float meanError, maxError;
+		
+		private Report(int samples, int floatCorrect, int quantizedCorrect, int agreements, float meanError, float maxError) {
+			
+			this.samples = samples;
+			this.floatCorrect = floatCorrect;
+			this.quantizedCorrect = quantizedCorrect;
+			this.agreements = agreements;
+			this.meanError = meanError;
+			this.maxError = maxError;
+		}
+		
+		public int getSamples() {return samples;}
+		public float getFloatAccuracy() {return (float) floatCorrect / samples;}
+		public float getQuantizedAccuracy() {return (float) quantizedCorrect / samples;}
+		public float getAccuracyDelta() {return getQuantizedAccuracy() - getFloatAccuracy();}
+		public float getAgreement() {return (float) agreements / samples;}
+		public float getMeanError() {return meanError;}
+		public float getMaxError() {return maxError;}
+		
+		@Override
+		public String toString() {
+			
+			return String.format("Samples: %d Float accuracy: %.4f Quantized accuracy: %.4f Delta: %+.4f Agreement: %.4f Mean error: %.6f Max error: %.6f",
+					samples, getFloatAccuracy(), getQuantizedAccuracy(), getAccuracyDelta(), getAgreement(), meanError, maxError);
+		}
+	}
+	
+	private static final int CALIBRATION_BATCH = 64;
+	
+	private final int[] filterCounts, neurons, denseInputs;
+	
+	//Per output channel int8 weights and scales, and one scale per layer for the activations coming in
+	private final byte[][] filters, weights;
+	private final float[][] filterScales, weightScales;
+	private final float[] convInputScales, denseInputScales;
+	
+	private final Report report;
+	
+	//The report is then measured on the calibration samples themselves, so its accuracy delta is in-sample
+	public QuantizedModel(Sequential model, Dataset calibration) {
+		
+		this(model, calibration, calibration);
+	}
+	
+	public QuantizedModel(Sequential model, Dataset calibration, Dataset evaluation) {
+		
+		super(model, false);
+		
+		if (calibration.size() == 0)
+			throw new RuntimeException("Calibration set is empty");
+		
+		if (calibration.getInputSize() != getInputSize())
+			throw new RuntimeException("Calibration input size does not match the network input shape");
+		
+		int convCount = model.getConvCount();
+		filterCounts = new int[convCount];
+		filters = new byte[convCount][];
+		filterScales = new float[convCount][];
+		
+		for (int i = 0; i < convCount; i++) {
+			Conv2D conv = model.getConv().get(i);
+			
+			filterCounts[i] = conv.getFilterCount();
+			filters[i] = new byte[conv.getFilterCount() * conv.getFilterSize()];
+			filterScales[i] = new float[conv.getFilterCount()];
+			Kernels.quantizeRows(conv.getRawFilters(), conv.getFilterCount(), conv.getFilterSize(), filters[i], filterScales[i]);
+		}
+		
+		int denseCount = model.getDenseCount();
+		neurons = new int[denseCount];
+		denseInputs = new int[denseCount];
+		weights = new byte[denseCount][];
+		weightScales = new float[denseCount][];
+		
+		for (int i = 0; i < denseCount; i++) {
+			Dense dense = model.getDense().get(i);
+			
+			neurons[i] = dense.getNeurons();
+			denseInputs[i] = dense.getInputShape();
+			byte[] rows = new byte[dense.getNeurons() * dense.getInputShape()];
+			weightScales[i] = new float[dense.getNeurons()];
+			Kernels.quantizeRows(dense.getRawWeights(), dense.getNeurons(), dense.getInputShape(), rows, weightScales[i]);
+			
+			//Stored transposed (inputs x neurons) so a layer is one int8 GEMM row, accumulated without a reduction
+			weights[i] = new byte[rows.length];
+			for (int n = 0; n < dense.getNeurons(); n++)
+				for (int k = 0; k < dense.getInputShape(); k++)
+					weights[i][k * dense.getNeurons() + n] = rows[n * dense.getInputShape() + k];
+		}
+		
+		convInputScales = new float[convCount];
+		denseInputScales = new float[denseCount];
+		calibrate(model, calibration);
+		
+		report = compare(model, evaluation);
+	}
+	
+	//Records the largest magnitude reaching every layer in the float model, which sets that layer's input scale. The
+	//samples run through a compiled copy whose hooks see each layer's input, leaving the model's own activations alone
+	private void calibrate(Sequential model, Dataset calibration) {
+		
+		InferenceModel observer = new InferenceModel(model) {
+			
+			@Override
+			void multDense(int layer, float[] input, float[] out, int rows, Scratch scratch) {
+				
+				denseInputScales[layer] = maxAbs(denseInputScales[layer], input, rows * denseInputs[layer]);
+				super.multDense(layer, input, out, rows, scratch);
+			}
+			
+			//The columns hold every input value of the patches, the zero padding aside
+			@Override
+			void multConv(int layer, float[] columns, float[] raw, int patchSize, int mapSize, Scratch scratch) {
+				
+				convInputScales[layer] = maxAbs(convInputScales[layer], columns, patchSize * mapSize);
+				super.multConv(layer, columns, raw, patchSize, mapSize, scratch);
+			}
+		};
+		
+		int batch = Math.min(CALIBRATION_BATCH, calibration.size());
+		float[] inputs = new float[batch * getInputSize()];
+		float[] outputs = new float[batch * getOutputSize()];
+		float[] label = new float[calibration.getLabelSize()];
+		
+		for (int start = 0; start < calibration.size(); start += batch) {
+			int rows = Math.min(batch, calibration.size() - start);
+			for (int r = 0; r < rows; r++)
+				calibration.read(start + r, inputs, r * getInputSize(), label, 0);
+			observer.predict(inputs, outputs, rows);
+		}
+		
+		for (int i = 0; i < convInputScales.length; i++)
+			convInputScales[i] = convInputScales[i] > 0.0f ? convInputScales[i] / 127.0f : 1.0f;
+		for (int i = 0; i < denseInputScales.length; i++)
+			denseInputScales[i] = denseInputScales[i] > 0.0f ? denseInputScales[i] / 127.0f : 1.0f;
+	}
+	
+	private static float maxAbs(float max, float[] values, int length) {
+		
+		for (int i = 0; i < length; i++)
+			max = Math.max(max, Math.abs(values[i]));
+		return max;
+	}
+	
+	//Runs data through the float model and this one, accuracy is measured as the argmax of the output against the label's
+	//or against the class index when the dataset has sparse labels
+	public Report compare(Sequential model, Dataset data) {
+		
+		if (data.size() == 0)
+			throw new RuntimeException("Cannot compare on an empty dataset");
+		
+		boolean classIndex = data.getLabelSize() == 1 && getOutputSize() > 1;
+		if (data.getInputSize() != getInputSize() || (data.getLabelSize() != getOutputSize() && !classIndex))
+			throw new RuntimeException("Dataset dimensions mismatch with the network shape");
+		
+		InferenceModel reference = model.compile();
+		
+		float[] input = new float[getInputSize()];
+		float[] label = new float[data.getLabelSize()];
+		float[] expected = new float[getOutputSize()];
+		float[] output = new float[getOutputSize()];
+		
+		int floatCorrect = 0, quantizedCorrect = 0, agreements = 0;
+		double errorSum = 0;
+		float maxError = 0.0f;
+		
+		for (int n = 0; n < data.size(); n++) {
+			data.read(n, input, 0, label, 0);
+			reference.predict(input, expected);
+			predict(input, output);
+			
+			int target = classIndex ? (int) label[0] : argmax(label), floatGuess = argmax(expected), guess = argmax(output);
+			if (floatGuess == target)
+				floatCorrect++;
+			if (guess == target)
+				quantizedCorrect++;
+			if (guess == floatGuess)
+				agreements++;
+			
+			for (int i = 0; i < output.length; i++) {
+				float error = Math.abs(output[i] - expected[i]);
+				errorSum += error;
+				maxError = Math.max(maxError, error);
+			}
+		}
+		
+		return new Report(data.size(), floatCorrect, quantizedCorrect, agreements, (float) (errorSum / ((double) data.size() * getOutputSize())), maxError);
+	}
+	
+	private static int argmax(float[] values) {
+		
+		int index = 0;
+		for (int i = 1; i < values.length; i++)
+			if (values[i] > values[index])
+				index = i;
+		return index;
+	}
+	
+	@Override
+	void multDense(int layer, float[] input, float[] out, int rows, Scratch scratch) {
+		
+		int inputs = denseInputs[layer];
+		int count = neurons[layer];
+		float inputScale = denseInputScales[layer];
+		
+		scratch.quantized = Kernels.ensure(scratch.quantized, rows * inputs);
+		scratch.accumulators = Kernels.ensure(scratch.accumulators, rows * count);
+		
+		Kernels.quantize(input, 0, rows * inputs, 1.0f / inputScale, scratch.quantized, 0);
+		Kernels.mult(scratch.quantized, weights[layer], scratch.accumulators, rows, inputs, count);
+		
+		for (int r = 0; r < rows; r++)
+			for (int j = 0; j < count; j++)
+				out[r * count + j] = scratch.accumulators[r * count + j] * weightScales[layer][j] * inputScale;
+	}
+	
+	@Override
+	void multConv(int layer, float[] columns, float[] raw, int patchSize, int mapSize, Scratch scratch) {
+		
+		int count = filterCounts[layer];
+		float inputScale = convInputScales[layer];
+		
+		scratch.quantized = Kernels.ensure(scratch.quantized, patchSize * mapSize);
+		scratch.accumulators = Kernels.ensure(scratch.accumulators, count * mapSize);
+		
+		Kernels.quantize(columns, 0, patchSize * mapSize, 1.0f / inputScale, scratch.quantized, 0);
+		Kernels.mult(filters[layer], scratch.quantized, scratch.accumulators, count, patchSize, mapSize);
+		
+		for (int f = 0; f < count; f++) {
+			float scale = filterScales[layer][f] * inputScale;
+			for (int i = f * mapSize; i < (f + 1) * mapSize; i++)
+				raw[i] = scratch.accumulators[i] * scale;
+		}
+	}
+	
+	public long getParameterBytes() {
+		
+		long bytes = 0;
+		for (int i = 0; i < filters.length; i++)
+			bytes += filters[i].length + 4L * filterScales[i].length;
+		for (int i = 0; i < weights.length; i++)
+			bytes += weights[i].length + 4L * weightScales[i].length;
+		return bytes;
+	}
+	
+	//Measured while quantizing on the evaluation set, or on the calibration set when none was given
+	public Report getReport() {return report;}
+}
@@ -1,11 +1,17 @@
 package deepLearning.utilities;
 
-import processing.core.*;
 import tensors.Float.*;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
 import java.io.ObjectOutputStream;
@@ -14,8 +20,9 @@ import java.io.Serializable;
 import java.io.File;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.nio.FloatBuffer;
 
-public class Sequential extends PApplet implements Serializable {
+public class Sequential implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
 	
@@ -28,6 +35,16 @@ public class Sequential extends PApplet implements Serializable {
 		SOFTMAX,
 		LINEAR;
 	}
+	
+	//How layer weights are stored. BF16 and FP16 do not save memory while training: the 16 bit copy sits next to the fp32
+	//masters, so a dense weight costs 6 bytes instead of 4 and a conv weight 10, its filter bank being widened whole into
+	//an fp32 scratch every pass. Activations, gradients and optimizer state stay fp32. Only an InferenceModel compiled
+	//from the model drops the masters and holds 2 bytes per dense weight
+	public enum PRECISION {
+		FP32,
+		BF16,
+		FP16;
+	}
 		
 	private String orientation;
 		
@@ -36,6 +53,17 @@ public class Sequential extends PApplet implements Serializable {
 	
 	Optimizer opt;
 	
+	private transient float[] batchInput, batchLabel, batchDeriv, batchFlat, batchOutput, evalInput, evalLabel;
+	
+	//Rows a validation pass predicts at once
+	private static final int EVAL_BATCH = 256;
+	private transient Vector sampleInput, sampleLabel;
+	
+	//Width of one label in the flat label arrays the training loops pass around, 1 for class indexes
+	private transient int labelSize;
+	
+	private transient Metrics metrics;
+	
 	public abstract class Options {
 				
 		private boolean regularized;
@@ -49,8 +77,21 @@ public class Sequential extends PApplet implements Serializable {
 		public float lr;
 		public float valSplit;
 		
+		//Validation runs every valEvery epochs, and also every valEveryIterations optimizer steps when that is above 0
+		public int valEvery;
+		public int valEveryIterations;
+		
+		//Stops after patience validations in a row without the loss improving by more than minDelta, 0 never stops
+		public int patience;
+		public float minDelta;
+		
 		public int epochs;
 		public int batchSize;
+		public int threads;
+		
+		//Hogwild: every thread trains its own batches and applies each step to the shared weights without locks or
+		//gradient averaging. onIterEnd and valEveryIterations are not run, the epoch callbacks are
+		public boolean async;
 		
 		public boolean shuffle;
 		public boolean saveIterLog;
@@ -68,8 +109,15 @@ public class Sequential extends PApplet implements Serializable {
 			lr = 0.001f;
 			valSplit = 0.0f;
 			
+			valEvery = 1;
+			valEveryIterations = 0;
+			patience = 0;
+			minDelta = 0.0f;
+			
 			epochs = 1;
 			batchSize = 1;
+			threads = 1;
+			async = false;
 			
 			shuffle = false;
 			saveIterLog = false;
@@ -84,6 +132,7 @@ public class Sequential extends PApplet implements Serializable {
 		public void onEpochEnd(int epoch, float trainLoss, float valLoss, String epochLog) {return;}
 		public void onIterEnd(int iter, float trainLoss, float valLoss, String iterLog) {return;}
 		public void onTrainingStart() {return;}
+		public void onEarlyStop(int epoch, float bestValLoss) {return;}
 		public final void regularize(float factor) {regularized = true; regFactor = factor;}
 		public final void onlyUpdateSelected(int[] updates) {onlyUpdateSelected = true; toUpdate = updates;}
 		public final boolean isRegularized() {return regularized;}
@@ -115,6 +164,25 @@ public class Sequential extends PApplet implements Serializable {
 		orientation = copied.getOrientation();
 	}
 	
+	//Shares the parameters, each replica only owns activation and gradient buffers. A replica that applies its own updates
+	//also needs the model's rule and its own state for it
+	Sequential replicate(boolean updates) {
+		
+		Sequential replica = new Sequential();
+		
+		for (Conv2D conv : getConv())
+			replica.getConv().add(conv.replica());
+		
+		for (Dense dense : getDense())
+			replica.getDense().add(dense.replica());
+		
+		replica.orientation = getOrientation();
+		replica.labelSize = labelSize;
+		replica.metrics = metrics;
+		replica.opt = updates ? new Optimizer(replica, getOpt().getLoss(), getOpt().getRule()) : new Optimizer(replica, getOpt().getLoss());
+		return replica;
+	}
+	
 	public Sequential add(Dense addit) {
 		
 		if (hasDense())
@@ -182,12 +250,25 @@ public class Sequential extends PApplet implements Serializable {
 		getDense().clear();
 	}
 	
+	public Sequential pool(Conv2D.POOLING pool) {
+		
+		return pool(pool, 1, 1);
+	}
+	
 	public Sequential pool(Conv2D.POOLING pool, int stride) {
 		
+		return pool(pool, stride, stride);
+	}
+	
+	public Sequential pool(Conv2D.POOLING pool, int window, int stride) {
+		
 		if (getDenseCount() > 0)
 			throw new RuntimeException("Cannot add pool to a Dense layer");
 		
-		getLastConv().setPool(pool, stride);
+		if (window < 1 || stride < 1)
+			throw new RuntimeException("Pool window and stride must be greater than 0");
+		
+		getLastConv().setPool(pool, window, stride);
 		getLastConv().init(getLastConv().getInputShape());
 		return this;
 	}
@@ -202,6 +283,35 @@ public class Sequential extends PApplet implements Serializable {
 		return this;
 	}
 	
+	//Prunes every dense layer to the given sparsity, keep training afterwards to fine-tune around the fixed mask
+	public Sequential prune(float sparsity) {
+		
+		for (Dense dense : getDense())
+			dense.pruneTo(sparsity);
+		return this;
+	}
+	
+	//Stores weights as 16 bit values the forward and backward passes widen on the fly, the optimizer keeps updating the
+	//fp32 masters and rounds them back after every step. This adds memory rather than saving it, see PRECISION
+	public Sequential precision(PRECISION precision) {
+		
+		for (Conv2D conv : getConv())
+			conv.setPrecision(precision);
+		for (Dense dense : getDense())
+			dense.setPrecision(precision);
+		return this;
+	}
+	
+	//Per-layer timings, throughput, gradient norms and loss/accuracy histograms for every fit() and feedForward(), null turns
+	//the recording off again
+	public Sequential metrics(Metrics metrics) {
+		
+		this.metrics = metrics;
+		if (metrics != null)
+			metrics.bind(getConvCount(), getDenseCount());
+		return this;
+	}
+	
 	public Sequential orientation(String or) {
 		
 		if (or.equals("horizontal") || or.equals("vertical"))
@@ -213,33 +323,401 @@ public class Sequential extends PApplet implements Serializable {
 	
 	public Vector feedForward(Vector input) {
 		
+		return forward(input, true);
+	}
+	
+	//Inference only, activation derivatives are not computed so the result cannot be backpropagated. The returned Vector
+	//is the last layer's buffer, valid until the next pass
+	public Vector predict(Vector input) {
+		
+		return forward(input, false);
+	}
+	
+	private Vector forward(Vector input, boolean training) {
+		
 		if (isEmpty())
 			return input;
 		
 		validateInput(input);
 		
+		Metrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		
 		Vector output;
 		if (hasConv()) {
 			
-			Matrix[] convOut = getFirstConv().toInputVolume(input, getOrientation());
-			for (Conv2D conv : getConv())
-				convOut = conv.computeOutput(convOut);
-			
-			if (isHorizontal())
-				output = Matrix.appendHor(convOut).flatten();
-			else
-				output = Matrix.appendVer(convOut).flatten();
+			float[] maps = getFirstConv().toPlanar(input, getOrientation());
+			for (int i = 0; i < getConvCount(); i++) {
+				maps = getConv().get(i).computeOutput(maps, training);
+				if (metrics != null)
+					start = record(metrics, i, start);
+			}
 			
-			getLastConv().setFlat(output.copy());
+			output = getLastConv().flatten(getOrientation());
 		} else
 			output = input;
 		
-		for (Dense dense : getDense())
-			output = dense.computeOutput(output);
+		for (int i = 0; i < getDenseCount(); i++) {
+			output = getDense().get(i).computeOutput(output, training);
+			if (metrics != null)
+				start = record(metrics, getConvCount() + i, start);
+		}
 		
 		return output;
 	}
 	
+	//Feeds a view such as DataFile.getInputView without building a Vector, the buffer position is left untouched
+	public Vector feedForward(FloatBuffer input) {
+		
+		sampleInput = ensure(sampleInput, input.remaining());
+		
+		input.mark();
+		input.get(sampleInput.get());
+		input.reset();
+		
+		return feedForward(sampleInput);
+	}
+	
+	public float[] feedForward(float[] input, int batchSize) {
+		
+		if (hasConv())
+			throw new RuntimeException("Batched feed forward is only supported for dense models");
+		
+		if (isEmpty())
+			return input;
+		
+		Metrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		
+		float[] output = input;
+		for (int i = 0; i < getDenseCount(); i++) {
+			output = getDense().get(i).computeOutput(output, batchSize);
+			if (metrics != null)
+				start = record(metrics, i, start);
+		}
+		
+		return output;
+	}
+	
+	//Inference over batchSize rows of inputs into the caller's outputs. Convolutions run a sample at a time, the dense
+	//layers once over the whole batch, and no derivatives are computed
+	public float[] predict(float[] inputs, float[] outputs, int batchSize) {
+		
+		if (isEmpty())
+			throw new RuntimeException("Cannot predict with an empty model");
+		
+		int inputSize = getInputSize();
+		int outputSize = getOutputSize();
+		
+		if (batchSize < 1)
+			throw new RuntimeException("Batch size must be greater than 0");
+		
+		if (inputs.length < batchSize * inputSize)
+			throw new RuntimeException("Input dimensions mismatch with the network input shape");
+		
+		if (outputs.length < batchSize * outputSize)
+			throw new RuntimeException("Output buffer is smaller than the network output shape");
+		
+		Metrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		
+		float[] output = inputs;
+		if (hasConv()) {
+			
+			int flatSize = getLastConv().getPooledOutSize();
+			float[] flat = outputs;
+			if (hasDense())
+				flat = batchFlat = Kernels.ensure(batchFlat, batchSize * flatSize);
+			
+			sampleInput = ensure(sampleInput, inputSize);
+			for (int b = 0; b < batchSize; b++) {
+				System.arraycopy(inputs, b * inputSize, sampleInput.get(), 0, inputSize);
+				
+				float[] maps = getFirstConv().toPlanar(sampleInput, getOrientation());
+				for (int i = 0; i < getConvCount(); i++) {
+					maps = getConv().get(i).computeOutput(maps, false);
+					if (metrics != null)
+						start = record(metrics, i, start);
+				}
+				
+				System.arraycopy(getLastConv().flatten(getOrientation()).get(), 0, flat, b * flatSize, flatSize);
+			}
+			output = flat;
+		}
+		
+		for (int i = 0; i < getDenseCount(); i++) {
+			output = getDense().get(i).computeOutput(output, batchSize, false);
+			if (metrics != null)
+				start = record(metrics, getConvCount() + i, start);
+		}
+		
+		if (output != outputs)
+			System.arraycopy(output, 0, outputs, 0, batchSize * outputSize);
+		return outputs;
+	}
+	
+	//Charges the time since start to the layer's forward pass and returns the new start, one clock read per layer
+	private static long record(Metrics metrics, int layer, long start) {
+		
+		long now = System.nanoTime();
+		metrics.forward(layer, now - start);
+		return now;
+	}
+	
+	private float trainSample(Vector inputSample, Vector label, int index, Options options) {
+		
+		Vector guess = feedForward(inputSample);
+		float loss = getOpt().computeLoss(guess, label);
+		if (metrics != null)
+			metrics.batch(1, loss, Metrics.correct(guess.get(), guess.getLength(), label.get(), label.getLength(), 1));
+		
+		Vector lossDeriv = getOpt().computeLossDeriv(guess, label);
+		if (options.onlySelected())
+			lossDeriv.setAllBut(options.updates()[index], 0.0f);
+		
+		getOpt().backpropagate(inputSample, lossDeriv);
+		return loss;
+	}
+	
+	private float trainBatch(float[] inputs, float[] labels, int[] indexes, int from, int to, Options options) {
+		
+		int inputSize = getInputSize();
+		int outputs = getOutputSize();
+		int labelSize = getLabelSize();
+		
+		if (hasConv() || to - from == 1) {
+			sampleInput = ensure(sampleInput, inputSize);
+			sampleLabel = ensure(sampleLabel, labelSize);
+			
+			float loss = 0.0f;
+			for (int i = from; i < to; i++) {
+				System.arraycopy(inputs, i * inputSize, sampleInput.get(), 0, inputSize);
+				System.arraycopy(labels, i * labelSize, sampleLabel.get(), 0, labelSize);
+				loss += trainSample(sampleInput, sampleLabel, indexes[i], options);
+			}
+			return loss;
+		}
+		
+		int batchSize = to - from;
+		if (from != 0) {
+			batchInput = Kernels.ensure(batchInput, batchSize * inputSize);
+			batchLabel = Kernels.ensure(batchLabel, batchSize * labelSize);
+			
+			System.arraycopy(inputs, from * inputSize, batchInput, 0, batchSize * inputSize);
+			System.arraycopy(labels, from * labelSize, batchLabel, 0, batchSize * labelSize);
+			inputs = batchInput;
+			labels = batchLabel;
+		}
+		
+		batchDeriv = Kernels.ensure(batchDeriv, batchSize * outputs);
+		float[] guess = feedForward(inputs, batchSize);
+		float loss = getOpt().computeLossAndDeriv(guess, labels, labelSize, batchDeriv, batchSize);
+		if (metrics != null)
+			metrics.batch(batchSize, loss, Metrics.correct(guess, outputs, labels, labelSize, batchSize));
+		if (options.onlySelected())
+			for (int i = 0; i < batchSize; i++) {
+				int selected = options.updates()[indexes[from + i]];
+				for (int j = 0; j < outputs; j++)
+					if (j != selected)
+						batchDeriv[i * outputs + j] = 0.0f;
+			}
+		
+		getOpt().backpropagate(inputs, batchDeriv, batchSize);
+		return loss;
+	}
+	
+	private float trainParallel(ForkJoinPool pool, Sequential[] replicas, float[] inputs, float[] labels, int[] indexes, int batchSize, Options options) {
+		
+		List<Callable<Float>> tasks = new ArrayList<Callable<Float>>(replicas.length);
+		int chunk = (batchSize + replicas.length - 1) / replicas.length;
+		
+		for (int i = 0; i * chunk < batchSize; i++) {
+			final Sequential replica = replicas[i];
+			final int from = i * chunk;
+			final int to = Math.min(batchSize, from + chunk);
+			
+			tasks.add(() -> replica.trainBatch(inputs, labels, indexes, from, to, options));
+		}
+		
+		float loss = sum(pool, tasks);
+		for (int i = 0; i < tasks.size(); i++) {
+			getOpt().accumulate(replicas[i].getOpt());
+			replicas[i].getOpt().zeroGrad();
+		}
+		return loss;
+	}
+	
+	//Hogwild over an epoch of in memory samples, each replica takes a contiguous shard of the shuffled order
+	private float trainAsync(ForkJoinPool pool, Sequential[] replicas, Vector[] trainSet, Vector[] labelSet, int[] indexes, Options options) {
+		
+		List<Callable<Float>> tasks = new ArrayList<Callable<Float>>(replicas.length);
+		int chunk = (indexes.length + replicas.length - 1) / replicas.length;
+		
+		for (int i = 0; i * chunk < indexes.length; i++) {
+			final Sequential replica = replicas[i];
+			final int from = i * chunk;
+			final int to = Math.min(indexes.length, from + chunk);
+			
+			tasks.add(() -> replica.trainShard(trainSet, labelSet, indexes, from, to, options));
+		}
+		return sum(pool, tasks);
+	}
+	
+	private float trainShard(Vector[] trainSet, Vector[] labelSet, int[] indexes, int from, int to, Options options) {
+		
+		int inputSize = getInputSize();
+		int labelSize = getLabelSize();
+		
+		batchInput = Kernels.ensure(batchInput, options.batchSize * inputSize);
+		batchLabel = Kernels.ensure(batchLabel, options.batchSize * labelSize);
+		int[] batchIndexes = new int[options.batchSize];
+		
+		float loss = 0.0f;
+		for (int start = from; start < to; start += options.batchSize) {
+			int rows = Math.min(options.batchSize, to - start);
+			
+			for (int i = 0; i < rows; i++) {
+				int index = indexes[start + i];
+				
+				validateInput(trainSet[index]);
+				System.arraycopy(trainSet[index].get(), 0, batchInput, i * inputSize, inputSize);
+				System.arraycopy(labelSet[index].get(), 0, batchLabel, i * labelSize, labelSize);
+				batchIndexes[i] = index;
+			}
+			
+			loss += trainBatch(batchInput, batchLabel, batchIndexes, 0, rows, options);
+			getOpt().fix(options);
+			getOpt().zeroGrad();
+		}
+		return loss;
+	}
+	
+	//Hogwild over a loader, the replicas pull batches from the shared iterator as they free up. Only taking a batch is
+	//synchronized, the updates are not
+	private float trainAsync(ForkJoinPool pool, Sequential[] replicas, Iterator<DataLoader.Batch> batches, AtomicInteger trained, Options options) {
+		
+		List<Callable<Float>> tasks = new ArrayList<Callable<Float>>(replicas.length);
+		for (Sequential replica : replicas)
+			tasks.add(() -> replica.trainPulled(batches, trained, options));
+		return sum(pool, tasks);
+	}
+	
+	private float trainPulled(Iterator<DataLoader.Batch> batches, AtomicInteger trained, Options options) {
+		
+		int inputSize = getInputSize();
+		int labelSize = getLabelSize();
+		int[] batchIndexes = new int[0];
+		
+		float loss = 0.0f;
+		while (true) {
+			int rows;
+			
+			//The loader reuses its batches, so the rows are copied out before the next thread can advance it
+			synchronized (batches) {
+				if (!batches.hasNext())
+					break;
+				
+				DataLoader.Batch batch = batches.next();
+				rows = batch.getSize();
+				
+				batchInput = Kernels.ensure(batchInput, rows * inputSize);
+				batchLabel = Kernels.ensure(batchLabel, rows * labelSize);
+				if (batchIndexes.length < rows)
+					batchIndexes = new int[rows];
+				
+				System.arraycopy(batch.getInputs(), 0, batchInput, 0, rows * inputSize);
+				System.arraycopy(batch.getLabels(), 0, batchLabel, 0, rows * labelSize);
+				System.arraycopy(batch.getIndexes(), 0, batchIndexes, 0, rows);
+			}
+			
+			loss += trainBatch(batchInput, batchLabel, batchIndexes, 0, rows, options);
+			getOpt().fix(options);
+			getOpt().zeroGrad();
+			trained.addAndGet(rows);
+		}
+		return loss;
+	}
+	
+	//Mean loss over rows of flat inputs and labels, the rows split evenly across the replicas when training in parallel.
+	//labelSize is the width of these labels, which can differ from the training labels, so the field is left alone
+	private float evaluate(ForkJoinPool pool, Sequential[] replicas, float[] inputs, float[] labels, int labelSize, int rows) {
+		
+		if (replicas == null)
+			return evaluateRange(inputs, labels, labelSize, 0, rows) / rows;
+		
+		List<Callable<Float>> tasks = new ArrayList<Callable<Float>>(replicas.length);
+		int chunk = (rows + replicas.length - 1) / replicas.length;
+		
+		for (int i = 0; i * chunk < rows; i++) {
+			final Sequential replica = replicas[i];
+			final int from = i * chunk;
+			final int to = Math.min(rows, from + chunk);
+			
+			tasks.add(() -> replica.evaluateRange(inputs, labels, labelSize, from, to));
+		}
+		return sum(pool, tasks) / rows;
+	}
+	
+	private float evaluate(ForkJoinPool pool, Sequential[] replicas, DataLoader loader) {
+		
+		float loss = 0.0f;
+		int count = 0;
+		try (DataLoader.BatchIterator batches = loader.iterator()) {
+			while (batches.hasNext()) {
+				DataLoader.Batch batch = batches.next();
+				loss += evaluate(pool, replicas, batch.getInputs(), batch.getLabels(), loader.getLabelSize(), batch.getSize()) * batch.getSize();
+				count += batch.getSize();
+			}
+		}
+		return count > 0 ? loss / count : 0.0f;
+	}
+	
+	private static float sum(ForkJoinPool pool, List<Callable<Float>> tasks) {
+		
+		float sum = 0.0f;
+		try {
+			for (Future<Float> result : pool.invokeAll(tasks))
+				sum += result.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return sum;
+	}
+	
+	//Summed loss over rows from..to, predicted EVAL_BATCH rows at a time without derivatives
+	private float evaluateRange(float[] inputs, float[] labels, int labelSize, int from, int to) {
+		
+		int inputSize = getInputSize();
+		int outputs = getOutputSize();
+		
+		float loss = 0.0f;
+		for (int start = from; start < to; start += EVAL_BATCH) {
+			int rows = Math.min(EVAL_BATCH, to - start);
+			
+			float[] batch = inputs, target = labels;
+			if (start > 0) {
+				evalInput = Kernels.ensure(evalInput, rows * inputSize);
+				evalLabel = Kernels.ensure(evalLabel, rows * labelSize);
+				System.arraycopy(inputs, start * inputSize, evalInput, 0, rows * inputSize);
+				System.arraycopy(labels, start * labelSize, evalLabel, 0, rows * labelSize);
+				batch = evalInput;
+				target = evalLabel;
+			}
+			
+			batchOutput = Kernels.ensure(batchOutput, rows * outputs);
+			float[] guess = predict(batch, batchOutput, rows);
+			
+			for (int i = 0; i < rows; i++)
+				if (labelSize == outputs)
+					loss += getOpt().computeLoss(guess, target, i * outputs, outputs);
+				else
+					loss += getOpt().computeLoss(guess, i * outputs, outputs, (int) target[i]);
+		}
+		return loss;
+	}
+	
 	private void validateInput(Vector input) {
 		
 		if (isEmpty())
@@ -254,12 +732,35 @@ public class Sequential extends PApplet implements Serializable {
 		return;
 	}
 	
+	public InferenceModel compile() {
+		
+		return new InferenceModel(this);
+	}
+	
+	//Int8 weights with scales calibrated on a few representative samples, see QuantizedModel.getReport for the accuracy cost
+	public QuantizedModel quantize(Dataset calibration) {
+		
+		return new QuantizedModel(this, calibration);
+	}
+	
+	//Same, with the accuracy cost measured on held out samples instead of the calibration ones
+	public QuantizedModel quantize(Dataset calibration, Dataset evaluation) {
+		
+		return new QuantizedModel(this, calibration, evaluation);
+	}
+	
 	public Sequential optimizer(Optimizer.LOSS loss) {
 		
 		opt = new Optimizer(this, loss);
 		return this;
 	}
 	
+	public Sequential optimizer(Optimizer.LOSS loss, UpdateRule rule) {
+		
+		opt = new Optimizer(this, loss, rule);
+		return this;
+	}
+	
 	public Sequential fit(Vector[] trainSet, Vector[] labelSet) {
 		
 		Options options = new Options(this) {
@@ -301,85 +802,372 @@ public class Sequential extends PApplet implements Serializable {
 		if (options.batchSize < 1)
 			throw new RuntimeException("Batch size must be greater than 0");
 		
+		if (options.threads < 1)
+			throw new RuntimeException("Thread count must be greater than 0");
+		
+		if (options.valSplit < 0.0f)
+			throw new RuntimeException("The validation split must not be negative");
+		
 		if (options.valSplit >= 1.0f)
 			throw new RuntimeException("The validation split must be smaller than 1");
 		
-		List<Integer> indexes = new ArrayList<Integer>(trainSet.length);
-		List<Float> splits = new ArrayList<Float>(trainSet.length);
+		validateSchedule(options);
+		
+		boolean async = options.async && options.threads > 1;
+		labelSize = labelSet.length > 0 ? labelSet[0].getLength() : getOutputSize();
+		validateLabelSize(labelSize);
+		
+		//The held out rows are drawn once and never trained on, they are copied flat so every pass is batched
+		int[] order = new int[trainSet.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		
+		Random random = new Random();
+		shuffle(order, random);
+		
+		int valCount = (int) (options.valSplit * trainSet.length);
+		int[] indexes = Arrays.copyOfRange(order, valCount, order.length);
+		
+		float[] valInputs = new float[valCount * getInputSize()];
+		float[] valLabels = new float[valCount * labelSize];
+		for (int i = 0; i < valCount; i++) {
+			validateInput(trainSet[order[i]]);
+			System.arraycopy(trainSet[order[i]].get(), 0, valInputs, i * getInputSize(), getInputSize());
+			System.arraycopy(labelSet[order[i]].get(), 0, valLabels, i * labelSize, labelSize);
+		}
+		
+		boolean parallel = options.threads > 1;
+		boolean batched = parallel || (!hasConv() && options.batchSize > 1);
+		int[] batchIndexes = new int[options.batchSize];
+		
+		int inputSize = getInputSize();
+		if (batched) {
+			batchInput = Kernels.ensure(batchInput, options.batchSize * inputSize);
+			batchLabel = Kernels.ensure(batchLabel, options.batchSize * labelSize);
+		}
+		
+		if (metrics != null) {
+			metrics.bind(getConvCount(), getDenseCount());
+			metrics.trainingStart();
+		}
 		
-		for (int i = 0; i < trainSet.length; i++) {
-			indexes.add(i);
-			splits.add(1.0f - i * 1.0f / trainSet.length);
+		ForkJoinPool pool = null;
+		Sequential[] replicas = null;
+		if (parallel) {
+			pool = new ForkJoinPool(options.threads);
+			replicas = new Sequential[options.threads];
+			for (int i = 0; i < replicas.length; i++)
+				replicas[i] = replicate(options.async);
 		}
 		
-		Collections.shuffle(splits);
+		Plateau plateau = new Plateau(options);
+		float valLoss = 0.0f;
+		int steps = 0;
 		
-		for (int i = 0; i < options.epochs; i++) {
+		for (int i = 0; i < options.epochs && !plateau.stopped; i++) {
 			float trainLoss = 0.0f;
-			float valLoss = 0.0f;
 						
 			int trainCount = 0;
-			int valCount = 0;
+			int pending = 0;
 			
 			if (options.shuffle)
-				Collections.shuffle(indexes);
+				shuffle(indexes, random);
+			
+			if (async) {
+				trainLoss = trainAsync(pool, replicas, trainSet, labelSet, indexes, options);
+				trainCount = indexes.length;
+			}
 						
-			for (int j = 0; j < trainSet.length; j++) {
+			for (int j = 0; j < indexes.length && !async && !plateau.stopped; j++) {
 				
-				int index = indexes.get(j);
-				float split = splits.get(index);
+				int index = indexes[j];
+				boolean stepped = false;
 				
 				Vector inputSample = trainSet[index];
-				
 				Vector label = labelSet[index];
-				Vector guess = feedForward(inputSample);
 				
-				float loss = getOpt().computeLoss(guess, label);
-				if (split >= options.valSplit) {
+				if (batched) {
 					
-					trainLoss += loss;
+					validateInput(inputSample);
+					System.arraycopy(inputSample.get(), 0, batchInput, pending * inputSize, inputSize);
+					System.arraycopy(label.get(), 0, batchLabel, pending * labelSize, labelSize);
 					
-					Vector lossDeriv = getOpt().computeLossDeriv(guess, label);
-					if (options.onlySelected())
-						lossDeriv.setAllBut(options.updates()[index], 0.0f);
+					batchIndexes[pending++] = index;
+					if (pending == options.batchSize) {
+						if (parallel)
+							trainLoss += trainParallel(pool, replicas, batchInput, batchLabel, batchIndexes, pending, options);
+						else
+							trainLoss += trainBatch(batchInput, batchLabel, batchIndexes, 0, pending, options);
+						trainCount += pending;
+						pending = 0;
+						
+						getOpt().fix(options);
+						getOpt().zeroGrad();
+						stepped = true;
+					}
+				
+				} else {
 					
-					getOpt().backpropagate(inputSample, lossDeriv);
+					trainLoss += trainSample(inputSample, label, index, options);
 					
 					trainCount++;
 					if (trainCount % options.batchSize == 0) {
 						getOpt().fix(options);
 						getOpt().zeroGrad();
+						stepped = true;
 					}
-					
-				} else {
-					valLoss += loss;
-					valCount++;
+				}
+				
+				if (stepped && options.valEveryIterations > 0 && ++steps % options.valEveryIterations == 0 && valCount > 0) {
+					valLoss = evaluate(pool, replicas, valInputs, valLabels, labelSize, valCount);
+					plateau.update(valLoss);
 				}
 								
 				String iterLog = "";
 				if (options.saveIterLog)
 					iterLog = ("Epoch: " + String.valueOf(i + 1) + "/" + options.epochs + 
-							" Training progress: " + Math.round(100 * 1000 * (float) j / trainSet.length) / 1000.0 + "%" +
-							" Training loss: " + String.valueOf((float) trainLoss / (trainCount > 0 ? trainCount : 1)) + " Validation loss: " + String.valueOf((float) valLoss / (valCount > 0 ? valCount : 1)));
+							" Training progress: " + Math.round(100 * 1000 * (float) j / indexes.length) / 1000.0 + "%" +
+							" Training loss: " + String.valueOf((float) trainLoss / (trainCount > 0 ? trainCount : 1)) + " Validation loss: " + String.valueOf(valLoss));
+				
+				options.onIterEnd(j + 1, trainCount > 0 ? trainLoss / trainCount : 0.0f, valLoss, iterLog);
+				if (metrics != null)
+					metrics.iteration(i + 1, j + 1, trainCount > 0 ? trainLoss / trainCount : 0.0f, valLoss);
+			}
+			
+			if (pending > 0) {
+				if (parallel)
+					trainLoss += trainParallel(pool, replicas, batchInput, batchLabel, batchIndexes, pending, options);
+				else
+					trainLoss += trainBatch(batchInput, batchLabel, batchIndexes, 0, pending, options);
+				trainCount += pending;
+			}
+			
+			if (valCount > 0 && !plateau.stopped && ((i + 1) % options.valEvery == 0 || i == options.epochs - 1)) {
+				valLoss = evaluate(pool, replicas, valInputs, valLabels, labelSize, valCount);
+				plateau.update(valLoss);
+			}
+			
+			String epochLog = "";
+			
+			trainLoss /= trainCount > 0 ? trainCount : 1;
+			if (options.saveEpochLog)
+					epochLog ="Epoch " + String.valueOf(i + 1) + "/" + String.valueOf(options.epochs) + " Train loss: " + String.valueOf(trainLoss)
+					+ " Validation loss: " + String.valueOf(valLoss);
+			
+			options.onEpochEnd(i + 1, trainLoss, valLoss, epochLog);
+			if (metrics != null)
+				metrics.epoch(i + 1, trainLoss, valLoss);
+			
+			if (plateau.stopped)
+				options.onEarlyStop(i + 1, plateau.best);
+		}
+		
+		if (pool != null)
+			pool.shutdown();
+		
+		options.onTrainingEnd();
+		return this;
+	}
+	
+	public Sequential fit(DataLoader trainLoader, Options options) {
+		
+		return fit(trainLoader, null, options);
+	}
+	
+	//The loader batch size is the update batch size, options.batchSize and options.shuffle are configured on the loader instead
+	public Sequential fit(DataLoader trainLoader, DataLoader valLoader, Options options) {
+		
+		options.tweak();
+		options.onTrainingStart();
+		
+		if (getOpt() == null)
+			throw new RuntimeException("Must set the optimizer befor calling fit()");
+		
+		if (isEmpty())
+			throw new RuntimeException("Cannot fit an empty model");
+		
+		if (options.threads < 1)
+			throw new RuntimeException("Thread count must be greater than 0");
+		
+		if (options.valSplit > 0.0f)
+			throw new RuntimeException("A DataLoader cannot be split, pass a validation loader instead of valSplit");
+		
+		validateSchedule(options);
+		validateLoader(trainLoader);
+		if (valLoader != null)
+			validateLoader(valLoader);
+		
+		labelSize = trainLoader.getLabelSize();
+		boolean parallel = options.threads > 1;
+		boolean async = options.async && parallel;
+		
+		if (metrics != null) {
+			metrics.bind(getConvCount(), getDenseCount());
+			metrics.trainingStart();
+		}
+		
+		ForkJoinPool pool = null;
+		Sequential[] replicas = null;
+		if (parallel) {
+			pool = new ForkJoinPool(options.threads);
+			replicas = new Sequential[options.threads];
+			for (int i = 0; i < replicas.length; i++)
+				replicas[i] = replicate(options.async);
+		}
+		
+		Plateau plateau = new Plateau(options);
+		float valLoss = 0.0f;
+		int steps = 0;
+		
+		for (int i = 0; i < options.epochs && !plateau.stopped; i++) {
+			float trainLoss = 0.0f;
+			
+			int trainCount = 0;
+			int iter = 0;
+			
+			try (DataLoader.BatchIterator batches = trainLoader.iterator()) {
+				if (async) {
+					AtomicInteger trained = new AtomicInteger();
+					trainLoss = trainAsync(pool, replicas, batches, trained, options);
+					trainCount = trained.get();
+				}
 				
-				options.onIterEnd(j + 1, trainCount > 0 ? trainLoss / trainCount : 0.0f, valCount > 0 ? valLoss / valCount : 0.0f, iterLog);
+				while (!async && batches.hasNext()) {
+					DataLoader.Batch batch = batches.next();
+					
+					if (parallel)
+						trainLoss += trainParallel(pool, replicas, batch.getInputs(), batch.getLabels(), batch.getIndexes(), batch.getSize(), options);
+					else
+						trainLoss += trainBatch(batch.getInputs(), batch.getLabels(), batch.getIndexes(), 0, batch.getSize(), options);
+					trainCount += batch.getSize();
+					
+					getOpt().fix(options);
+					getOpt().zeroGrad();
+					
+					if (valLoader != null && options.valEveryIterations > 0 && ++steps % options.valEveryIterations == 0) {
+						valLoss = evaluate(pool, replicas, valLoader);
+						if (plateau.update(valLoss))
+							break;
+					}
+					
+					String iterLog = "";
+					if (options.saveIterLog)
+						iterLog = ("Epoch: " + String.valueOf(i + 1) + "/" + options.epochs + 
+								" Samples: " + trainCount + " Training loss: " + String.valueOf(trainLoss / trainCount));
+					
+					options.onIterEnd(++iter, trainLoss / trainCount, valLoss, iterLog);
+					if (metrics != null)
+						metrics.iteration(i + 1, iter, trainLoss / trainCount, valLoss);
+				}
+			}
+			
+			if (valLoader != null && !plateau.stopped && ((i + 1) % options.valEvery == 0 || i == options.epochs - 1)) {
+				valLoss = evaluate(pool, replicas, valLoader);
+				plateau.update(valLoss);
 			}
 			
 			String epochLog = "";
 			
 			trainLoss /= trainCount > 0 ? trainCount : 1;
-			valLoss /= valCount > 0 ? valCount : 1;
 			if (options.saveEpochLog)
 					epochLog ="Epoch " + String.valueOf(i + 1) + "/" + String.valueOf(options.epochs) + " Train loss: " + String.valueOf(trainLoss)
 					+ " Validation loss: " + String.valueOf(valLoss);
 			
 			options.onEpochEnd(i + 1, trainLoss, valLoss, epochLog);
+			if (metrics != null)
+				metrics.epoch(i + 1, trainLoss, valLoss);
+			
+			if (plateau.stopped)
+				options.onEarlyStop(i + 1, plateau.best);
 		}
 		
+		if (pool != null)
+			pool.shutdown();
+		
 		options.onTrainingEnd();
 		return this;
 	}
 	
+	private void validateSchedule(Options options) {
+		
+		if (options.valEvery < 1)
+			throw new RuntimeException("Validation interval must be greater than 0");
+		
+		if (options.valEveryIterations < 0 || options.patience < 0)
+			throw new RuntimeException("Validation iterations and patience must not be negative");
+		
+		if (options.async && options.threads > 1 && options.valEveryIterations > 0)
+			throw new RuntimeException("Asynchronous training only validates at epoch boundaries");
+	}
+	
+	//Tracks the best validation loss for Options.patience
+	private static class Plateau {
+		
+		private final int patience;
+		private final float minDelta;
+		
+		private float best;
+		private int stale;
+		private boolean stopped;
+		
+		private Plateau(Options options) {
+			
+			patience = options.patience;
+			minDelta = options.minDelta;
+			best = Float.POSITIVE_INFINITY;
+		}
+		
+		//Returns true once training should stop
+		private boolean update(float loss) {
+			
+			if (loss < best - minDelta) {
+				best = loss;
+				stale = 0;
+			} else
+				stale++;
+			
+			stopped = patience > 0 && stale >= patience;
+			return stopped;
+		}
+	}
+	
+	private void validateLoader(DataLoader loader) {
+		
+		if (loader.getInputSize() != getInputSize())
+			throw new RuntimeException("Loader input size mismatch with the network input shape");
+		
+		validateLabelSize(loader.getLabelSize());
+	}
+	
+	//Labels are either as wide as the output or, for cross entropy, a single class index
+	private void validateLabelSize(int size) {
+		
+		if (size == getOutputSize())
+			return;
+		
+		if (size != 1 || getOpt().getLoss() != Optimizer.LOSS.CROSSENTROPY)
+			throw new RuntimeException("Label size mismatch with the network output shape");
+	}
+	
+	private int getLabelSize() {return labelSize > 0 ? labelSize : getOutputSize();}
+	
+	private static Vector ensure(Vector buffer, int length) {
+		
+		if (buffer == null || buffer.getLength() != length)
+			return new Vector(length);
+		return buffer;
+	}
+	
+	private static void shuffle(int[] array, Random random) {
+		
+		for (int i = array.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = array[i];
+			array[i] = array[j];
+			array[j] = temp;
+		}
+	}
+	
 	public Sequential summary() {
 		
 		int count = 1;
@@ -433,6 +1221,12 @@ public class Sequential extends PApplet implements Serializable {
 	
 	public Sequential saveModel(String sel) {
 		
+		ModelFile.save(this, sel);
+		return this;
+	}
+	
+	public Sequential saveSerializedModel(String sel) {
+		
 		try {
 			FileOutputStream fileOut = new FileOutputStream(new File(sel));
 	        ObjectOutputStream objectOut = new ObjectOutputStream(fileOut);
@@ -449,8 +1243,19 @@ public class Sequential extends PApplet implements Serializable {
 		return this;
 	}
 	
+	//Inference only. The fp32 weights of a saveModel file stay in the read-only file mapping instead of the heap, so
+	//processes serving the same file share them through the page cache
+	public static InferenceModel mapModel(String sel) {
+		
+		return ModelFile.map(sel);
+	}
+	
+	//Reads model files and ObjectOutputStream files alike, including those serialized before the layers were flattened
 	public static Sequential loadModel(String sel) {
 		
+		if (ModelFile.isModelFile(sel))
+			return ModelFile.load(sel);
+		
 		try {
 			FileInputStream fileIn = new FileInputStream(new File(sel));
 			ObjectInputStream objectIn = new ObjectInputStream(fileIn);
@@ -470,40 +1275,6 @@ public class Sequential extends PApplet implements Serializable {
 		}
 	}
 	
-	public PImage[][] getAllFeatureMaps(){
-		
-		if (!hasDense())
-			throw new RuntimeException("No convolutional layers found");
-		
-		PImage[][] images = new PImage[getConvCount()][];
-		for (int i = 0; i < getConvCount(); i++)
-			images[i] = getFeatureMaps(i);
-		
-		return images;
-	}
-	
-	public PImage[] getFeatureMaps(int index) {
-		
-		if (!hasDense())
-			throw new RuntimeException("No convolutional layers found");
-		
-		if (index >= getConvCount())
-			throw new RuntimeException("Index exceeds number of convolutional layers");
-		
-		Conv2D conv = getConv().get(index);
-		PImage[] images = new PImage[conv.getOutputShape()[2]];
-		for (int i = 0; i < images.length; i++) {
-			images[i] = createImage(conv.getOutputShape()[1], conv.getOutputShape()[2], RGB);
-			images[i].loadPixels();
-			
-			for (int j = 0; j < images[i].height; j++)
-				for (int k = 0; k < images[i].width; k++)
-					images[i].set(k, j, color(conv.getOutVal()[i].get(j, k) * 255));
-		}
-		
-		return images;
-	}
-	
 	public List<Dense> getDense() {return denseLayers;}
 	public List<Conv2D> getConv() {return convLayers;}
 	public Dense getLastDense() {return denseLayers.get(denseLayers.size() - 1);}
@@ -519,7 +1290,10 @@ public class Sequential extends PApplet implements Serializable {
 	public boolean isHorizontal() {return orientation.equals("horizontal");}
 	public boolean isVertical() {return orientation.equals("vertical");}
 	public int getCount() {return getDenseCount() + getConvCount();}
+	public int getInputSize() {return hasConv() ? getFirstConv().getInputSize() : getFirstDense().getInputShape();}
+	public int getOutputSize() {return hasDense() ? getLastDense().getNeurons() : getLastConv().getPooledOutSize();}
 	public Optimizer getOpt() {return opt;}
+	public Metrics getMetrics() {return metrics;}
 	
 	public static List<ACTIVATION> getActLabels() {
 		List<ACTIVATION> labels = new ArrayList<ACTIVATION>();
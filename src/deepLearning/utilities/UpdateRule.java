@@ -0,0 +1,149 @@
+package deepLearning.utilities;
+
+import java.io.Serializable;
+
+//Applies one step to a flat parameter array. Gradient scaling, weight decay and the subtraction all happen in the
+//same pass; state holds getStateCount() arrays of params.length floats that persist between steps
+public interface UpdateRule extends Serializable {
+	
+	int getStateCount();
+	
+	void update(float[] params, float[] grad, float[][] state, float lr, float gradScale, boolean decay, int step);
+	
+	public static UpdateRule sgd() {return new SGD();}
+	public static UpdateRule momentum(float momentum) {return new Momentum(momentum, false);}
+	public static UpdateRule nesterov(float momentum) {return new Momentum(momentum, true);}
+	public static UpdateRule rmsProp(float rho, float epsilon) {return new RMSProp(rho, epsilon);}
+	public static UpdateRule rmsProp() {return rmsProp(0.9f, 1e-7f);}
+	public static UpdateRule adam(float beta1, float beta2, float epsilon) {return new Adam(beta1, beta2, epsilon, 0.0f);}
+	public static UpdateRule adam() {return adam(0.9f, 0.999f, 1e-7f);}
+	public static UpdateRule adamW(float beta1, float beta2, float epsilon, float weightDecay) {return new Adam(beta1, beta2, epsilon, weightDecay);}
+	public static UpdateRule adamW(float weightDecay) {return adamW(0.9f, 0.999f, 1e-7f, weightDecay);}
+	
+	public static class SGD implements UpdateRule {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public int getStateCount() {return 0;}
+		
+		@Override
+		public void update(float[] params, float[] grad, float[][] state, float lr, float gradScale, boolean decay, int step) {
+			
+			float scale = lr * gradScale;
+			for (int i = 0; i < params.length; i++)
+				params[i] -= scale * grad[i];
+		}
+	}
+	
+	public static class Momentum implements UpdateRule {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final float momentum;
+		private final boolean nesterov;
+		
+		public Momentum(float momentum, boolean nesterov) {
+			
+			this.momentum = momentum;
+			this.nesterov = nesterov;
+		}
+		
+		@Override
+		public int getStateCount() {return 1;}
+		
+		@Override
+		public void update(float[] params, float[] grad, float[][] state, float lr, float gradScale, boolean decay, int step) {
+			
+			float[] velocity = state[0];
+			for (int i = 0; i < params.length; i++) {
+				
+				float g = grad[i] * gradScale;
+				float v = momentum * velocity[i] + g;
+				velocity[i] = v;
+				params[i] -= lr * (nesterov ? g + momentum * v : v);
+			}
+		}
+		
+		public float getMomentum() {return momentum;}
+		public boolean isNesterov() {return nesterov;}
+	}
+	
+	public static class RMSProp implements UpdateRule {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final float rho, epsilon;
+		
+		public RMSProp(float rho, float epsilon) {
+			
+			this.rho = rho;
+			this.epsilon = epsilon;
+		}
+		
+		@Override
+		public int getStateCount() {return 1;}
+		
+		@Override
+		public void update(float[] params, float[] grad, float[][] state, float lr, float gradScale, boolean decay, int step) {
+			
+			float[] meanSquare = state[0];
+			for (int i = 0; i < params.length; i++) {
+				
+				float g = grad[i] * gradScale;
+				float s = rho * meanSquare[i] + (1.0f - rho) * g * g;
+				meanSquare[i] = s;
+				params[i] -= lr * g / ((float) Math.sqrt(s) + epsilon);
+			}
+		}
+		
+		public float getRho() {return rho;}
+		public float getEpsilon() {return epsilon;}
+	}
+	
+	//Adam, or AdamW when weightDecay > 0: the decay is decoupled from the moments and only applied where decay is set
+	public static class Adam implements UpdateRule {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final float beta1, beta2, epsilon, weightDecay;
+		
+		public Adam(float beta1, float beta2, float epsilon, float weightDecay) {
+			
+			this.beta1 = beta1;
+			this.beta2 = beta2;
+			this.epsilon = epsilon;
+			this.weightDecay = weightDecay;
+		}
+		
+		@Override
+		public int getStateCount() {return 2;}
+		
+		@Override
+		public void update(float[] params, float[] grad, float[][] state, float lr, float gradScale, boolean decay, int step) {
+			
+			float[] first = state[0];
+			float[] second = state[1];
+			
+			float correction1 = 1.0f / (1.0f - (float) Math.pow(beta1, step));
+			float correction2 = 1.0f / (1.0f - (float) Math.pow(beta2, step));
+			float decayStep = decay ? lr * weightDecay : 0.0f;
+			
+			for (int i = 0; i < params.length; i++) {
+				
+				float g = grad[i] * gradScale;
+				float m = beta1 * first[i] + (1.0f - beta1) * g;
+				float v = beta2 * second[i] + (1.0f - beta2) * g * g;
+				first[i] = m;
+				second[i] = v;
+				
+				params[i] -= lr * (m * correction1) / ((float) Math.sqrt(v * correction2) + epsilon) + decayStep * params[i];
+			}
+		}
+		
+		public float getBeta1() {return beta1;}
+		public float getBeta2() {return beta2;}
+		public float getEpsilon() {return epsilon;}
+		public float getWeightDecay() {return weightDecay;}
+	}
+}
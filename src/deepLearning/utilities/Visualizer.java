@@ -254,6 +254,49 @@ public class Visualizer {
 		 return this;
 	}
 	
+	//Feature maps live here rather than on Sequential so the model itself never touches Processing
+	public PImage[][] getAllFeatureMaps() {
+		
+		if (!model.hasConv())
+			throw new RuntimeException("No convolutional layers found");
+		
+		PImage[][] images = new PImage[model.getConvCount()][];
+		for (int i = 0; i < model.getConvCount(); i++)
+			images[i] = getFeatureMaps(i);
+		
+		return images;
+	}
+	
+	//One grayscale image per filter of the last feedForward, before pooling
+	public PImage[] getFeatureMaps(int index) {
+		
+		if (!model.hasConv())
+			throw new RuntimeException("No convolutional layers found");
+		
+		if (index >= model.getConvCount())
+			throw new RuntimeException("Index exceeds number of convolutional layers");
+		
+		Conv2D conv = model.getConv().get(index);
+		float[] maps = conv.getRawOutput();
+		if (maps == null)
+			throw new RuntimeException("Feed an input forward before reading feature maps");
+		
+		int rows = conv.getOutputShape()[0];
+		int cols = conv.getOutputShape()[1];
+		
+		PImage[] images = new PImage[conv.getFilterCount()];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = parent.createImage(cols, rows, PConstants.RGB);
+			images[i].loadPixels();
+			
+			for (int j = 0; j < rows * cols; j++)
+				images[i].pixels[j] = parent.color(maps[i * rows * cols + j] * 255);
+			images[i].updatePixels();
+		}
+		
+		return images;
+	}
+	
 	public boolean isEmpty() {
 		
 		return convPos.isEmpty() && densePos.isEmpty();
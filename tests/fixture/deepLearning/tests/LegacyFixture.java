@@ -0,0 +1,46 @@
+package deepLearning.tests;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+//Compiled against the library as it was before the layers moved to flat float[] storage, see tests/README.md. Saves a
+//model with ObjectOutputStream and the outputs it gives for LegacyModelTest.inputs, which the current build must reproduce
+public class LegacyFixture {
+	
+	public static void main(String[] args) throws FileNotFoundException {
+		
+		String dir = args.length > 0 ? args[0] : "tests/resources";
+		
+		Sequential model = new Sequential();
+		model.add(new Conv2D(new int[] {8, 8, 2}, 3, new int[] {3, 3}, Sequential.ACTIVATION.TANH));
+		model.pool(Conv2D.POOLING.MAX, 2);
+		model.add(new Dense(6, Sequential.ACTIVATION.SIGMOID));
+		model.add(new Dense(4, Sequential.ACTIVATION.SOFTMAX));
+		model.optimizer(Optimizer.LOSS.CROSSENTROPY);
+		
+		model.saveModel(dir + "/legacy-model.ser");
+		
+		PrintWriter out = new PrintWriter(dir + "/legacy-model.txt");
+		for (int i = 0; i < 4; i++) {
+			float[] output = model.feedForward(new Vector(input(i, 8 * 8 * 2))).get();
+			
+			StringBuilder line = new StringBuilder();
+			for (int j = 0; j < output.length; j++)
+				line.append(j > 0 ? "," : "").append(output[j]);
+			out.println(line);
+		}
+		out.close();
+	}
+	
+	//Same inputs as LegacyModelTest
+	static float[] input(int sample, int length) {
+		
+		float[] input = new float[length];
+		for (int i = 0; i < length; i++)
+			input[i] = (float) Math.sin(i * (sample + 1) * 0.37);
+		return input;
+	}
+}
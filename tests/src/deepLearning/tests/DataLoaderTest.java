@@ -0,0 +1,38 @@
+package deepLearning.tests;
+
+import deepLearning.utilities.*;
+
+//Closing a prefetching epoch part way through has to stop its producer thread, closing a finished one does nothing
+public class DataLoaderTest {
+	
+	public static void main(String[] args) {
+		
+		float[] inputs = new float[64 * 3];
+		float[] labels = new float[64 * 2];
+		for (int i = 0; i < inputs.length; i++)
+			inputs[i] = i;
+		
+		DataLoader loader = new DataLoader(Dataset.of(inputs, labels, 3, 2)).batchSize(4).prefetch(2);
+		
+		DataLoader.BatchIterator batches = loader.iterator();
+		batches.next();
+		batches.next();
+		Tests.check(Tests.isAlive("DataLoader-prefetch"), "prefetch thread did not start");
+		
+		batches.close();
+		Tests.check(!Tests.isAlive("DataLoader-prefetch"), "prefetch thread outlived close()");
+		Tests.check(!batches.hasNext(), "closed epoch still has batches");
+		
+		int count = 0;
+		try (DataLoader.BatchIterator epoch = loader.iterator()) {
+			while (epoch.hasNext()) {
+				epoch.next();
+				count++;
+			}
+		}
+		Tests.check(count == 16, "expected 16 batches after a closed epoch, got " + count);
+		Tests.check(!Tests.isAlive("DataLoader-prefetch"), "prefetch thread outlived a full epoch");
+		
+		System.out.println("DataLoaderTest passed");
+	}
+}
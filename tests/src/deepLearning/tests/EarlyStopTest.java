@@ -0,0 +1,67 @@
+package deepLearning.tests;
+
+import deepLearning.utilities.*;
+
+//Early stopping in the middle of an epoch, and an exception thrown out of fit(), must not leave prefetch threads behind
+public class EarlyStopTest {
+	
+	public static void main(String[] args) {
+		
+		float[] inputs = new float[64 * 4];
+		int[] classes = new int[64];
+		for (int i = 0; i < 64; i++) {
+			for (int j = 0; j < 4; j++)
+				inputs[i * 4 + j] = (float) Math.sin(i * 4 + j);
+			classes[i] = i % 3;
+		}
+		
+		Sequential model = new Sequential();
+		model.add(new Dense(4, 8, Sequential.ACTIVATION.RELU));
+		model.add(new Dense(3, Sequential.ACTIVATION.SOFTMAX));
+		model.optimizer(Optimizer.LOSS.CROSSENTROPY);
+		
+		DataLoader train = new DataLoader(Dataset.of(inputs, classes, 4)).batchSize(4).prefetch(2);
+		DataLoader val = new DataLoader(Dataset.of(inputs, classes, 4)).batchSize(16).prefetch(2);
+		
+		int[] stoppedAt = {0};
+		int[] iterations = {0};
+		model.fit(train, val, model.new Options(model) {
+			
+			@Override
+			public void tweak() {
+				
+				epochs = 5;
+				valEveryIterations = 1;
+				patience = 1;
+				minDelta = Float.MAX_VALUE;
+				saveEpochLog = false;
+			}
+			
+			@Override
+			public void onIterEnd(int iter, float trainLoss, float valLoss, String iterLog) {iterations[0]++;}
+			
+			@Override
+			public void onEarlyStop(int epoch, float bestValLoss) {stoppedAt[0] = epoch;}
+		});
+		
+		Tests.check(stoppedAt[0] == 1, "expected an early stop in epoch 1, got " + stoppedAt[0]);
+		Tests.check(iterations[0] == 1, "expected to stop on the second step, ran " + iterations[0] + " full steps");
+		Tests.check(!Tests.isAlive("DataLoader-prefetch"), "prefetch thread outlived an early stop");
+		
+		try {
+			model.fit(train, val, model.new Options(model) {
+				
+				@Override
+				public void tweak() {saveEpochLog = false;}
+				
+				@Override
+				public void onIterEnd(int iter, float trainLoss, float valLoss, String iterLog) {throw new IllegalStateException("stop");}
+			});
+			Tests.check(false, "fit() swallowed the callback exception");
+		} catch (IllegalStateException e) {
+			Tests.check(!Tests.isAlive("DataLoader-prefetch"), "prefetch thread outlived an exception in fit()");
+		}
+		
+		System.out.println("EarlyStopTest passed");
+	}
+}
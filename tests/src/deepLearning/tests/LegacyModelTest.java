@@ -0,0 +1,77 @@
+package deepLearning.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+//Loads tests/resources/legacy-model.ser, written with ObjectOutputStream by the library before the layers moved to flat
+//float[] storage (see LegacyFixture), and checks it predicts what it did when it was saved, still trains and survives a
+//round trip through the current formats
+public class LegacyModelTest {
+	
+	public static void main(String[] args) throws IOException {
+		
+		String dir = args.length > 0 ? args[0] : "tests/resources";
+		
+		Sequential model = Sequential.loadModel(dir + "/legacy-model.ser");
+		List<String> expected = Files.readAllLines(new File(dir, "legacy-model.txt").toPath(), StandardCharsets.UTF_8);
+		
+		for (int i = 0; i < expected.size(); i++)
+			Tests.near(model.feedForward(new Vector(input(i, model.getInputSize()))).get(), parse(expected.get(i)), 1e-5f, "legacy output " + i);
+		
+		Tests.check(model.getOpt() != null, "legacy optimizer was not restored");
+		Tests.check(model.getOpt().getLoss() == Optimizer.LOSS.CROSSENTROPY, "legacy loss was not restored");
+		
+		Vector[] inputs = new Vector[16];
+		Vector[] labels = new Vector[16];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = new Vector(input(i, model.getInputSize()));
+			labels[i] = new Vector(model.getOutputSize());
+			labels[i].set(i % model.getOutputSize(), 1.0f);
+		}
+		
+		float[] before = model.feedForward(inputs[0]).get().clone();
+		model.fit(inputs, labels, 0.1f, 4, 2, 0.0f, false);
+		Tests.check(!Tests.equal(before, model.feedForward(inputs[0]).get()), "legacy model did not train");
+		
+		File file = File.createTempFile("legacy", ".model");
+		File serialized = File.createTempFile("legacy", ".ser");
+		try {
+			float[] trained = model.feedForward(inputs[1]).get().clone();
+			
+			model.saveModel(file.getPath());
+			Tests.near(Sequential.loadModel(file.getPath()).feedForward(inputs[1]).get(), trained, 0.0f, "model file round trip");
+			
+			model.saveSerializedModel(serialized.getPath());
+			Tests.near(Sequential.loadModel(serialized.getPath()).feedForward(inputs[1]).get(), trained, 0.0f, "serialized round trip");
+		} finally {
+			file.delete();
+			serialized.delete();
+		}
+		
+		System.out.println("LegacyModelTest passed");
+	}
+	
+	//Same inputs as LegacyFixture
+	static float[] input(int sample, int length) {
+		
+		float[] input = new float[length];
+		for (int i = 0; i < length; i++)
+			input[i] = (float) Math.sin(i * (sample + 1) * 0.37);
+		return input;
+	}
+	
+	private static float[] parse(String line) {
+		
+		String[] values = line.trim().split(",");
+		float[] result = new float[values.length];
+		for (int i = 0; i < values.length; i++)
+			result[i] = Float.parseFloat(values[i]);
+		return result;
+	}
+}
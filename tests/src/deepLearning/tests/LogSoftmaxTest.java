@@ -0,0 +1,38 @@
+package deepLearning.tests;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+//A softmax output trained with cross entropy takes its loss from the fused log probabilities, but its derivative must
+//still be p(1 - p)
+public class LogSoftmaxTest {
+	
+	public static void main(String[] args) {
+		
+		Sequential model = new Sequential();
+		model.add(new Dense(5, 8, Sequential.ACTIVATION.TANH));
+		model.add(new Dense(4, Sequential.ACTIVATION.SOFTMAX));
+		model.optimizer(Optimizer.LOSS.CROSSENTROPY);
+		
+		Vector input = new Vector(new float[] {0.3f, -1.2f, 2.0f, 0.5f, -0.1f});
+		Vector label = new Vector(new float[] {0.0f, 0.0f, 1.0f, 0.0f});
+		
+		Dense last = model.getLastDense();
+		Tests.check(last.getActivation().isLogSoftmax(), "cross entropy did not fuse the softmax");
+		
+		float[] p = model.feedForward(input).get();
+		float[] expected = new float[p.length];
+		for (int i = 0; i < p.length; i++)
+			expected[i] = p[i] * (1.0f - p[i]);
+		Tests.near(last.getDerivative().get(), expected, 1e-7f, "softmax derivative");
+		
+		float loss = model.getOpt().computeLoss(last.getValue(), label);
+		Tests.check(Math.abs(loss + (float) Math.log(p[2])) < 1e-5f, "cross entropy " + loss + " is not -log p = " + (- Math.log(p[2])));
+		
+		float[] batch = model.feedForward(new float[] {0.3f, -1.2f, 2.0f, 0.5f, -0.1f, 1.0f, 1.0f, 1.0f, 1.0f, 1.0f}, 2);
+		for (int i = 0; i < batch.length; i++)
+			Tests.check(Math.abs(last.getBatchDer()[i] - batch[i] * (1.0f - batch[i])) < 1e-7f, "batched softmax derivative " + i);
+		
+		System.out.println("LogSoftmaxTest passed");
+	}
+}
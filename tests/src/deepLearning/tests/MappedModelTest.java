@@ -0,0 +1,50 @@
+package deepLearning.tests;
+
+import java.io.File;
+import java.io.IOException;
+
+import deepLearning.utilities.*;
+
+//An InferenceModel over a mapped model file has to predict exactly what the compiled heap model does, including for the
+//pruned and half precision layers it still copies
+public class MappedModelTest {
+	
+	public static void main(String[] args) throws IOException {
+		
+		Sequential conv = new Sequential();
+		conv.add(new Conv2D(new int[] {8, 8, 2}, 3, new int[] {3, 3}, Sequential.ACTIVATION.RELU));
+		conv.pool(Conv2D.POOLING.MAX, 2);
+		conv.add(new Dense(6, Sequential.ACTIVATION.TANH));
+		conv.add(new Dense(4, Sequential.ACTIVATION.SOFTMAX));
+		check(conv, "conv");
+		
+		Sequential mixed = new Sequential();
+		mixed.add(new Dense(12, 16, Sequential.ACTIVATION.RELU));
+		mixed.add(new Dense(8, Sequential.ACTIVATION.SIGMOID));
+		mixed.add(new Dense(3, Sequential.ACTIVATION.SOFTMAX));
+		mixed.getDense().get(0).pruneTo(0.8f);
+		mixed.getDense().get(1).setPrecision(Sequential.PRECISION.BF16);
+		check(mixed, "pruned and half precision");
+		
+		System.out.println("MappedModelTest passed");
+	}
+	
+	private static void check(Sequential model, String name) throws IOException {
+		
+		int batch = 5;
+		float[] inputs = new float[batch * model.getInputSize()];
+		for (int i = 0; i < inputs.length; i++)
+			inputs[i] = (float) Math.sin(i * 0.61);
+		
+		File file = File.createTempFile("mapped", ".model");
+		try {
+			model.saveModel(file.getPath());
+			
+			float[] expected = Sequential.loadModel(file.getPath()).compile().predict(inputs, new float[batch * model.getOutputSize()], batch);
+			float[] actual = Sequential.mapModel(file.getPath()).predict(inputs, new float[batch * model.getOutputSize()], batch);
+			Tests.near(actual, expected, 0.0f, name + " mapped prediction");
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package deepLearning.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+//Load, train and save again to the same path, the way a checkpoint is refreshed. The file must be replaced whole and
+//leave no temporary file next to it
+public class ModelFileTest {
+	
+	public static void main(String[] args) throws IOException {
+		
+		File dir = Files.createTempDirectory("modelfile").toFile();
+		File file = new File(dir, "model.bin");
+		
+		try {
+			Sequential model = new Sequential();
+			model.add(new Dense(4, 8, Sequential.ACTIVATION.RELU));
+			model.add(new Dense(2, Sequential.ACTIVATION.SOFTMAX));
+			model.optimizer(Optimizer.LOSS.CROSSENTROPY);
+			model.saveModel(file.getPath());
+			
+			Vector[] inputs = new Vector[8];
+			Vector[] labels = new Vector[8];
+			for (int i = 0; i < inputs.length; i++) {
+				inputs[i] = new Vector(new float[] {i, -i, i * 0.5f, 1.0f});
+				labels[i] = new Vector(2);
+				labels[i].set(i % 2, 1.0f);
+			}
+			
+			for (int round = 0; round < 3; round++) {
+				Sequential loaded = Sequential.loadModel(file.getPath());
+				loaded.fit(inputs, labels, 0.1f, 4, 1, 0.0f, false);
+				loaded.saveModel(file.getPath());
+				
+				float[] expected = loaded.feedForward(inputs[1]).get().clone();
+				Tests.near(Sequential.loadModel(file.getPath()).feedForward(inputs[1]).get(), expected, 0.0f, "round " + round);
+			}
+			
+			String[] left = dir.list();
+			Tests.check(left.length == 1, "expected only the model file, found " + String.join(", ", left));
+		} finally {
+			for (File child : dir.listFiles())
+				child.delete();
+			dir.delete();
+		}
+		
+		System.out.println("ModelFileTest passed");
+	}
+}
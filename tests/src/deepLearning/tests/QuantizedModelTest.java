@@ -0,0 +1,44 @@
+package deepLearning.tests;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+//Quantizing must not run the training forward pass of the model it reads, and a separate evaluation set must be what the
+//report is measured on
+public class QuantizedModelTest {
+	
+	public static void main(String[] args) {
+		
+		Sequential model = new Sequential();
+		model.add(new Dense(4, 8, Sequential.ACTIVATION.TANH));
+		model.add(new Dense(3, Sequential.ACTIVATION.SOFTMAX));
+		model.optimizer(Optimizer.LOSS.CROSSENTROPY);
+		
+		float[] inputs = new float[48 * 4];
+		int[] classes = new int[48];
+		for (int i = 0; i < 48; i++) {
+			for (int j = 0; j < 4; j++)
+				inputs[i * 4 + j] = (float) Math.cos(i * 4 + j);
+			classes[i] = i % 3;
+		}
+		
+		model.feedForward(new Vector(new float[] {0.5f, -0.5f, 1.0f, 0.0f}));
+		float[] hidden = model.getFirstDense().getValue().get().clone();
+		float[] output = model.getLastDense().getValue().get().clone();
+		float[] derivative = model.getLastDense().getDerivative().get().clone();
+		
+		float[] held = new float[12 * 4];
+		System.arraycopy(inputs, 36 * 4, held, 0, held.length);
+		QuantizedModel quantized = model.quantize(Dataset.of(inputs, classes, 4), Dataset.of(held, new int[12], 4));
+		
+		Tests.check(Tests.equal(model.getFirstDense().getValue().get(), hidden), "hidden activations after quantizing");
+		Tests.check(Tests.equal(model.getLastDense().getValue().get(), output), "output activations after quantizing");
+		Tests.check(Tests.equal(model.getLastDense().getDerivative().get(), derivative), "output derivatives after quantizing");
+		
+		QuantizedModel.Report report = quantized.getReport();
+		Tests.check(report.getSamples() == 12, "report measured on " + report.getSamples() + " samples instead of the 12 held out");
+		Tests.check(model.quantize(Dataset.of(inputs, classes, 4)).getReport().getSamples() == 48, "default report is not the calibration set");
+		
+		System.out.println("QuantizedModelTest passed");
+	}
+}
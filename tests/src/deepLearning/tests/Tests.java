@@ -0,0 +1,35 @@
+package deepLearning.tests;
+
+import java.util.Arrays;
+
+//The tests are plain programs, each main throws on the first failed check so the build stops on it
+final class Tests {
+	
+	private Tests() {}
+	
+	static void check(boolean condition, String message) {
+		
+		if (!condition)
+			throw new AssertionError(message);
+	}
+	
+	static void near(float[] actual, float[] expected, float tolerance, String message) {
+		
+		check(actual.length == expected.length, message + ": expected " + expected.length + " values, got " + actual.length);
+		
+		for (int i = 0; i < actual.length; i++)
+			if (!(Math.abs(actual[i] - expected[i]) <= tolerance))
+				throw new AssertionError(message + ": expected " + Arrays.toString(expected) + ", got " + Arrays.toString(actual));
+	}
+	
+	//Whether a live thread has this name, only meaningful for threads the library names itself
+	static boolean isAlive(String name) {
+		
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().equals(name) && thread.isAlive())
+				return true;
+		return false;
+	}
+	
+	static boolean equal(float[] a, float[] b) {return Arrays.equals(a, b);}
+}
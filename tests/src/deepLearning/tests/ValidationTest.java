@@ -0,0 +1,64 @@
+package deepLearning.tests;
+
+import deepLearning.utilities.*;
+import tensors.Float.*;
+
+//Validation settings fit() must reject before it draws the held out rows, and validation labels whose width differs
+//from the training labels must not change how the following epochs read their batches
+public class ValidationTest {
+	
+	public static void main(String[] args) {
+		
+		Sequential model = new Sequential();
+		model.add(new Dense(4, 8, Sequential.ACTIVATION.RELU));
+		model.add(new Dense(3, Sequential.ACTIVATION.SOFTMAX));
+		model.optimizer(Optimizer.LOSS.CROSSENTROPY);
+		
+		Vector[] inputs = new Vector[16];
+		Vector[] labels = new Vector[16];
+		for (int i = 0; i < 16; i++) {
+			inputs[i] = new Vector(new float[] {i, -i, i * 0.5f, 1.0f});
+			labels[i] = new Vector(3);
+			labels[i].get()[i % 3] = 1.0f;
+		}
+		
+		try {
+			model.fit(inputs, labels, 0.01f, 4, 1, -0.25f, true);
+			Tests.check(false, "fit() accepted a negative validation split");
+		} catch (RuntimeException e) {
+			Tests.check("The validation split must not be negative".equals(e.getMessage()), "unexpected failure " + e);
+		}
+		
+		float[] flat = new float[64 * 4];
+		int[] classes = new int[64];
+		float[] oneHot = new float[64 * 3];
+		for (int i = 0; i < 64; i++) {
+			for (int j = 0; j < 4; j++)
+				flat[i * 4 + j] = (float) Math.sin(i * 4 + j);
+			classes[i] = i % 3;
+			oneHot[i * 3 + i % 3] = 1.0f;
+		}
+		
+		DataLoader train = new DataLoader(Dataset.of(flat, classes, 4)).batchSize(8);
+		DataLoader val = new DataLoader(Dataset.of(flat, oneHot, 4, 3)).batchSize(16);
+		
+		float[] losses = new float[3];
+		model.fit(train, val, model.new Options(model) {
+			
+			@Override
+			public void tweak() {
+				
+				epochs = 3;
+				saveEpochLog = false;
+			}
+			
+			@Override
+			public void onEpochEnd(int epoch, float trainLoss, float valLoss, String epochLog) {losses[epoch - 1] = trainLoss;}
+		});
+		
+		for (int i = 0; i < losses.length; i++)
+			Tests.check(losses[i] > 0.0f && !Float.isNaN(losses[i]), "epoch " + (i + 1) + " trained on class indices read as one-hot rows, loss " + losses[i]);
+		
+		System.out.println("ValidationTest passed");
+	}
+}